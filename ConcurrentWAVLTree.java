@@ -0,0 +1,333 @@
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ *
+ *
+ * ConcurrentWAVLTree
+ *
+ * A thread-safe facade of a WAVLTree for many readers and a few writers.
+ * Point reads first run as StampedLock optimistic reads: they descend the tree without locking
+ * and are kept only if no write started meanwhile, otherwise they are repeated under the read lock.
+ * Range scans and bulk exports run under the read lock, and writes are serialized by the write lock.
+ *
+ */
+
+public class ConcurrentWAVLTree {
+	private static final int MAX_STEPS = 64; // a WAVL tree of up to 2^30 items is at most 60 levels high
+
+	private final WAVLTree tree;
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * public ConcurrentWAVLTree()
+	 *
+	 * a constructor of a new empty concurrent WAVL tree
+	 */
+	public ConcurrentWAVLTree()
+	{
+		this(0);
+	}
+
+	/**
+	 * public ConcurrentWAVLTree(int poolCapacity)
+	 *
+	 * a constructor of a new empty concurrent WAVL tree that recycles up to poolCapacity deleted nodes
+	 */
+	public ConcurrentWAVLTree(int poolCapacity)
+	{
+		tree = new WAVLTree(poolCapacity);
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree, otherwise returns null
+	 */
+	public String search(int k)
+	{
+		return optimisticRead(() -> optimisticSearch(k), () -> tree.search(k));
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * returns the info of the i'th smallest key, or "-1" if i is out of range, as WAVLTree.select
+	 */
+	public String select(int i)
+	{
+		return optimisticRead(() -> optimisticSelect(i), () -> tree.select(i));
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the item with the smallest key, or null if the tree is empty
+	 */
+	public String min()
+	{
+		return optimisticRead(tree::min, tree::min);
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the item with the largest key, or null if the tree is empty
+	 */
+	public String max()
+	{
+		return optimisticRead(tree::max, tree::max);
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the tree
+	 */
+	public int size()
+	{
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			int result = tree.size();
+			if (lock.validate(stamp))
+				return result;
+		}
+		stamp = lock.readLock();
+		try {
+			return tree.size();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int countRange(int lo, int hi)
+	 *
+	 * returns the number of keys in [lo, hi]
+	 */
+	public int countRange(int lo, int hi)
+	{
+		long stamp = lock.readLock();
+		try {
+			return tree.countRange(lo, hi);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	 *
+	 * calls action with every item with a key in [lo, hi] in increasing order, under the read lock.
+	 * action must not write to this tree
+	 */
+	public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	{
+		long stamp = lock.readLock();
+		try {
+			tree.forEachInRange(lo, hi, action);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public boolean forEachInRangeWhile(int lo, int hi, WAVLTree.IntObjPredicate<String> action)
+	 *
+	 * like forEachInRange, but stops as soon as action returns false.
+	 * returns true if the whole range was scanned
+	 */
+	public boolean forEachInRangeWhile(int lo, int hi, WAVLTree.IntObjPredicate<String> action)
+	{
+		long stamp = lock.readLock();
+		try {
+			return tree.forEachInRangeWhile(lo, hi, action);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys, taken under the read lock
+	 */
+	public int[] keysToArray()
+	{
+		long stamp = lock.readLock();
+		try {
+			return tree.keysToArray();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns the infos sorted by their keys, taken under the read lock
+	 */
+	public String[] infoToArray()
+	{
+		long stamp = lock.readLock();
+		try {
+			return tree.infoToArray();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i under the write lock.
+	 * returns the number of rebalancing operations, or -1 if key k already exists
+	 */
+	public int insert(int k, String i)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return tree.insert(k, i);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public String put(int k, String i)
+	 *
+	 * inserts an item with key k and info i, or overwrites the info of key k, under the write lock.
+	 * returns the previous info of key k, or null if k was not in the tree
+	 */
+	public String put(int k, String i)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return tree.put(k, i);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes the item with key k under the write lock.
+	 * returns the number of rebalancing operations, or -1 if key k was not found
+	 */
+	public int delete(int k)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return tree.delete(k);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * public int deleteRange(int lo, int hi)
+	 *
+	 * deletes the items with keys in [lo, hi] under the write lock.
+	 * returns the number of deleted items
+	 */
+	public int deleteRange(int lo, int hi)
+	{
+		long stamp = lock.writeLock();
+		try {
+			return tree.deleteRange(lo, hi);
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * private String optimisticRead(Supplier<String> optimistic, Supplier<String> locked)
+	 *
+	 * returns the result of optimistic if it ran without a write starting meanwhile,
+	 * otherwise runs locked under the read lock and returns its result
+	 */
+	private String optimisticRead(Supplier<String> optimistic, Supplier<String> locked)
+	{
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				String result = optimistic.get();
+				if (lock.validate(stamp))
+					return result;
+			}
+			catch (RuntimeException e) { // a torn read of nodes that a writer was changing
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return locked.get();
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * private String optimisticSearch(int k)
+	 *
+	 * descends the tree without locking through the public node accessors.
+	 * a writer may change the nodes meanwhile, so the descent is bounded by MAX_STEPS
+	 * and its result is only used after the stamp is validated
+	 */
+	private String optimisticSearch(int k)
+	{
+		WAVLTree.WAVLNode cur = tree.getRoot();
+		for (int steps = 0; cur != null && cur.isInnerNode() && steps < MAX_STEPS; steps++) {
+			int key = cur.getKey();
+			if (k == key)
+				return cur.getValue();
+			cur = (k < key) ? cur.getLeft() : cur.getRight();
+		}
+		return null;
+	}
+
+	/**
+	 * private String optimisticSelect(int i)
+	 *
+	 * finds the i'th smallest key without locking, bounded as optimisticSearch
+	 */
+	private String optimisticSelect(int i)
+	{
+		WAVLTree.WAVLNode cur = tree.getRoot();
+		if (cur == null || i <= 0 || i > cur.getSubtreeSize()) // the index is out of bounds
+			return "-1";
+		for (int steps = 0; cur.isInnerNode() && steps < MAX_STEPS; steps++) {
+			int leftSize = cur.getLeft().getSubtreeSize();
+			if (i == leftSize + 1)
+				return cur.getValue();
+			if (i <= leftSize)
+				cur = cur.getLeft();
+			else {
+				i -= leftSize + 1;
+				cur = cur.getRight();
+			}
+		}
+		return null;
+	}
+}
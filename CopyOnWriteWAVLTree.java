@@ -0,0 +1,178 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ *
+ *
+ * CopyOnWriteWAVLTree
+ *
+ * A thread-safe WAVL tree for read-heavy workloads, in the style of read-copy-update.
+ * The items are held in a PersistentWAVLTree version. A writer builds the next version by
+ * path copying and publishes it with a release store, and writers are serialized by the
+ * tree's monitor. Readers load the current version with an acquire load and read it with
+ * no locks and no validation, so a read never waits for a writer or for other readers.
+ * Old versions are reclaimed by the garbage collector once no reader holds them.
+ *
+ */
+
+public class CopyOnWriteWAVLTree {
+	private static final VarHandle CURRENT;
+
+	static {
+		try {
+			CURRENT = MethodHandles.lookup().findVarHandle(CopyOnWriteWAVLTree.class, "current", PersistentWAVLTree.class);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private PersistentWAVLTree current = new PersistentWAVLTree(); // the last published version, written only through CURRENT
+
+	/**
+	 * public PersistentWAVLTree version()
+	 *
+	 * returns the current version. it never changes, so several reads of it are consistent
+	 * with each other even while writers publish newer versions
+	 */
+	public PersistentWAVLTree version()
+	{
+		return (PersistentWAVLTree) CURRENT.getAcquire(this);
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the current version is empty
+	 */
+	public boolean empty()
+	{
+		return version().empty();
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the current version
+	 */
+	public int size()
+	{
+		return version().size();
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of key k in the current version, or null if it does not exist
+	 */
+	public String search(int k)
+	{
+		return version().search(k);
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * returns the info of the i'th smallest key in the current version, or "-1" if i is out of range
+	 */
+	public String select(int i)
+	{
+		return version().select(i);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the smallest key in the current version, or null if it is empty
+	 */
+	public String min()
+	{
+		return version().min();
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the largest key in the current version, or null if it is empty
+	 */
+	public String max()
+	{
+		return version().max();
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys of the current version
+	 */
+	public int[] keysToArray()
+	{
+		return version().keysToArray();
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns the infos of the current version sorted by their keys
+	 */
+	public String[] infoToArray()
+	{
+		return version().infoToArray();
+	}
+
+	/**
+	 * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	 *
+	 * calls action with every item of the current version with a key in [lo, hi], in increasing order
+	 */
+	public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	{
+		version().forEachInRange(lo, hi, action);
+	}
+
+	/**
+	 * public synchronized boolean insert(int k, String i)
+	 *
+	 * publishes a version with the item (k, i) added.
+	 * returns false (and publishes nothing) if key k already exists
+	 */
+	public synchronized boolean insert(int k, String i)
+	{
+		PersistentWAVLTree last = current;
+		PersistentWAVLTree next = last.insert(k, i);
+		if (next == last)
+			return false;
+		CURRENT.setRelease(this, next);
+		return true;
+	}
+
+	/**
+	 * public synchronized String put(int k, String i)
+	 *
+	 * publishes a version with the item (k, i), replacing the info of key k if it exists.
+	 * returns the previous info of key k, or null if k was not in the tree
+	 */
+	public synchronized String put(int k, String i)
+	{
+		PersistentWAVLTree last = current;
+		String previous = last.search(k);
+		CURRENT.setRelease(this, last.put(k, i));
+		return previous;
+	}
+
+	/**
+	 * public synchronized boolean delete(int k)
+	 *
+	 * publishes a version without the item with key k.
+	 * returns false (and publishes nothing) if key k does not exist
+	 */
+	public synchronized boolean delete(int k)
+	{
+		PersistentWAVLTree last = current;
+		PersistentWAVLTree next = last.delete(k);
+		if (next == last)
+			return false;
+		CURRENT.setRelease(this, next);
+		return true;
+	}
+}
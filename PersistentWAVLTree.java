@@ -0,0 +1,445 @@
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ *
+ *
+ * PersistentWAVLTree
+ *
+ * An immutable version of a WAVL Tree. insert, put and delete do not change the tree,
+ * they return a new version that copies only the nodes on the path from the root to the
+ * changed key and the nodes moved by rotations, and shares every other node with this version.
+ * Nodes have no parent pointers, since a shared node may have a different parent in every version,
+ * so all the operations descend from the root and iteration keeps its own stack.
+ * Any version may be read by any number of threads without locks.
+ *
+ */
+
+public class PersistentWAVLTree {
+	private final Node root; // null if the tree is empty
+
+	/**
+	 * public PersistentWAVLTree()
+	 *
+	 * a constructor of a new empty persistent WAVL tree
+	 */
+	public PersistentWAVLTree()
+	{
+		this(null);
+	}
+
+	private PersistentWAVLTree(Node root)
+	{
+		this.root = root;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty()
+	{
+		return root == null;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the tree
+	 */
+	public int size()
+	{
+		return size(root);
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree, otherwise returns null
+	 */
+	public String search(int k)
+	{
+		Node cur = root;
+		while (cur != null) {
+			if (k == cur.key)
+				return cur.value;
+			cur = (k < cur.key) ? cur.left : cur.right;
+		}
+		return null;
+	}
+
+	/**
+	 * public PersistentWAVLTree insert(int k, String i)
+	 *
+	 * returns a version with the item (k, i) added, copying O(log n) nodes.
+	 * returns this version if an item with key k already exists
+	 */
+	public PersistentWAVLTree insert(int k, String i)
+	{
+		Node newRoot = insert(root, k, i);
+		return (newRoot == root) ? this : new PersistentWAVLTree(newRoot);
+	}
+
+	/**
+	 * public PersistentWAVLTree put(int k, String i)
+	 *
+	 * returns a version with the item (k, i), where the info of key k is replaced if it already exists
+	 */
+	public PersistentWAVLTree put(int k, String i)
+	{
+		return new PersistentWAVLTree(put(root, k, i));
+	}
+
+	/**
+	 * public PersistentWAVLTree delete(int k)
+	 *
+	 * returns a version without the item with key k, copying O(log n) nodes.
+	 * returns this version if there is no item with key k
+	 */
+	public PersistentWAVLTree delete(int k)
+	{
+		Node newRoot = delete(root, k);
+		return (newRoot == root) ? this : new PersistentWAVLTree(newRoot);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the item with the smallest key, or null if the tree is empty
+	 */
+	public String min()
+	{
+		if (root == null)
+			return null;
+		Node cur = root;
+		while (cur.left != null)
+			cur = cur.left;
+		return cur.value;
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the item with the largest key, or null if the tree is empty
+	 */
+	public String max()
+	{
+		if (root == null)
+			return null;
+		Node cur = root;
+		while (cur.right != null)
+			cur = cur.right;
+		return cur.value;
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * returns the info of the i'th smallest key, or "-1" if i is out of range, as WAVLTree.select
+	 */
+	public String select(int i)
+	{
+		if (i <= 0 || i > size(root)) // the index is out of bounds
+			return "-1";
+		Node cur = root;
+		while (true) {
+			int leftSize = size(cur.left);
+			if (i == leftSize + 1)
+				return cur.value;
+			if (i <= leftSize)
+				cur = cur.left;
+			else {
+				i -= leftSize + 1;
+				cur = cur.right;
+			}
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys, or an empty array if the tree is empty
+	 */
+	public int[] keysToArray()
+	{
+		int[] keysArray = new int[size(root)];
+		Cursor cursor = cursor();
+		for (int i = 0; i < keysArray.length; i++)
+			keysArray[i] = cursor.nextInt();
+		return keysArray;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns the infos sorted by their keys, or an empty array if the tree is empty
+	 */
+	public String[] infoToArray()
+	{
+		String[] infoArray = new String[size(root)];
+		Cursor cursor = cursor();
+		for (int i = 0; i < infoArray.length; i++) {
+			cursor.nextInt();
+			infoArray[i] = cursor.value();
+		}
+		return infoArray;
+	}
+
+	/**
+	 * public Cursor cursor()
+	 *
+	 * returns a cursor over the keys of this version in increasing order
+	 */
+	public Cursor cursor()
+	{
+		return new Cursor(root, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	 *
+	 * calls action with the key and info of every item with a key in [lo, hi], in increasing order,
+	 * in O(log n + m) for m items
+	 */
+	public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	{
+		if (lo > hi)
+			return;
+		Cursor cursor = new Cursor(root, lo);
+		while (cursor.hasNext()) {
+			int key = cursor.nextInt();
+			if (key > hi)
+				return;
+			action.accept(key, cursor.value());
+		}
+	}
+
+	/**
+	 * private static Node insert(Node node, int k, String i)
+	 *
+	 * returns the root of a copy of the sub-tree node with the item (k, i) added and rebalanced,
+	 * or node itself if key k is already there
+	 */
+	private static Node insert(Node node, int k, String i)
+	{
+		if (node == null)
+			return new Node(k, i, null, null, 0);
+		if (k == node.key)
+			return node;
+		if (k < node.key) {
+			Node left = insert(node.left, k, i);
+			return (left == node.left) ? node : balanceInsert(node.key, node.value, left, node.right, node.rank);
+		}
+		Node right = insert(node.right, k, i);
+		return (right == node.right) ? node : balanceInsert(node.key, node.value, node.left, right, node.rank);
+	}
+
+	/**
+	 * private static Node put(Node node, int k, String i)
+	 *
+	 * like insert, but a node with key k is copied with the info i
+	 */
+	private static Node put(Node node, int k, String i)
+	{
+		if (node == null)
+			return new Node(k, i, null, null, 0);
+		if (k == node.key)
+			return new Node(k, i, node.left, node.right, node.rank);
+		if (k < node.key)
+			return balanceInsert(node.key, node.value, put(node.left, k, i), node.right, node.rank);
+		return balanceInsert(node.key, node.value, node.left, put(node.right, k, i), node.rank);
+	}
+
+	/**
+	 * private static Node balanceInsert(int key, String value, Node left, Node right, int rank)
+	 *
+	 * returns a node (key, value) of the given rank over left and right, after one of them was
+	 * rebuilt by an insertion and may have become a 0-child. a 0-child whose sibling is a 1-child
+	 * is fixed by a promotion, and otherwise by a single or double rotation, as in WAVLTree
+	 */
+	private static Node balanceInsert(int key, String value, Node left, Node right, int rank)
+	{
+		int leftDiff = rank - rank(left);
+		int rightDiff = rank - rank(right);
+		if (leftDiff != 0 && rightDiff != 0) // no 0-child
+			return new Node(key, value, left, right, rank);
+		boolean leftHigh = (leftDiff == 0);
+		if ((leftHigh ? rightDiff : leftDiff) == 1) // case 1 - promote
+			return new Node(key, value, left, right, rank + 1);
+		Node x = leftHigh ? left : right; // the 0-child
+		Node outer = leftHigh ? x.left : x.right;
+		Node inner = leftHigh ? x.right : x.left;
+		if (x.rank - rank(outer) == 1) { // case 2 - single rotation, x becomes the root and keeps its rank
+			if (leftHigh)
+				return new Node(x.key, x.value, outer, new Node(key, value, inner, right, rank - 1), x.rank);
+			return new Node(x.key, x.value, new Node(key, value, left, inner, rank - 1), outer, x.rank);
+		}
+		// case 3 - double rotation, the inner grandchild t becomes the root
+		Node t = inner;
+		if (leftHigh)
+			return new Node(t.key, t.value, new Node(x.key, x.value, outer, t.left, x.rank - 1),
+					new Node(key, value, t.right, right, rank - 1), t.rank + 1);
+		return new Node(t.key, t.value, new Node(key, value, left, t.left, rank - 1),
+				new Node(x.key, x.value, t.right, outer, x.rank - 1), t.rank + 1);
+	}
+
+	/**
+	 * private static Node delete(Node node, int k)
+	 *
+	 * returns the root of a copy of the sub-tree node without key k, rebalanced,
+	 * or node itself if key k is not there
+	 */
+	private static Node delete(Node node, int k)
+	{
+		if (node == null)
+			return null;
+		if (k < node.key) {
+			Node left = delete(node.left, k);
+			return (left == node.left) ? node : balanceDelete(node.key, node.value, left, node.right, node.rank);
+		}
+		if (k > node.key) {
+			Node right = delete(node.right, k);
+			return (right == node.right) ? node : balanceDelete(node.key, node.value, node.left, right, node.rank);
+		}
+		if (node.left == null) // a leaf or a unary node is replaced by its child
+			return node.right;
+		if (node.right == null)
+			return node.left;
+		Node successor = node.right; // a binary node takes the item of its successor
+		while (successor.left != null)
+			successor = successor.left;
+		return balanceDelete(successor.key, successor.value, node.left, delete(node.right, successor.key), node.rank);
+	}
+
+	/**
+	 * private static Node balanceDelete(int key, String value, Node left, Node right, int rank)
+	 *
+	 * returns a node (key, value) of the given rank over left and right, after one of them was
+	 * rebuilt by a deletion and may have become a 3-child. a (2,2) leaf is demoted, and a 3-child
+	 * is fixed by a demotion, a double demotion, or a single or double rotation, as in WAVLTree
+	 */
+	private static Node balanceDelete(int key, String value, Node left, Node right, int rank)
+	{
+		if (left == null && right == null) // a leaf always has rank 0
+			return new Node(key, value, null, null, 0);
+		int leftDiff = rank - rank(left);
+		int rightDiff = rank - rank(right);
+		if (leftDiff < 3 && rightDiff < 3) // no 3-child
+			return new Node(key, value, left, right, rank);
+		boolean leftShort = (leftDiff == 3);
+		Node y = leftShort ? right : left; // the sibling of the 3-child
+		if ((leftShort ? rightDiff : leftDiff) == 2) // case 1 - demote
+			return new Node(key, value, left, right, rank - 1);
+		Node outer = leftShort ? y.right : y.left;
+		Node inner = leftShort ? y.left : y.right;
+		int outerDiff = y.rank - rank(outer);
+		if (outerDiff == 2 && y.rank - rank(inner) == 2) { // case 2 - double demote
+			Node demoted = new Node(y.key, y.value, y.left, y.right, y.rank - 1);
+			return leftShort ? new Node(key, value, left, demoted, rank - 1) : new Node(key, value, demoted, right, rank - 1);
+		}
+		if (outerDiff == 1) { // case 3 - single rotation, y becomes the root and is promoted
+			if (leftShort)
+				return new Node(y.key, y.value, balanceDelete(key, value, left, inner, rank - 1), outer, y.rank + 1);
+			return new Node(y.key, y.value, outer, balanceDelete(key, value, inner, right, rank - 1), y.rank + 1);
+		}
+		// case 4 - double rotation, the inner grandchild t becomes the root
+		Node t = inner;
+		if (leftShort)
+			return new Node(t.key, t.value, new Node(key, value, left, t.left, rank - 2),
+					new Node(y.key, y.value, t.right, outer, y.rank - 1), t.rank + 2);
+		return new Node(t.key, t.value, new Node(y.key, y.value, outer, t.left, y.rank - 1),
+				new Node(key, value, t.right, right, rank - 2), t.rank + 2);
+	}
+
+	private static int rank(Node node)
+	{
+		return (node == null) ? -1 : node.rank;
+	}
+
+	private static int size(Node node)
+	{
+		return (node == null) ? 0 : node.size;
+	}
+
+	/**
+	* public static class Cursor
+	*
+	* an in-order cursor over the keys of one version, with an explicit stack of the nodes
+	* whose keys are still to come, since nodes have no parent pointers
+	*/
+	public static class Cursor implements PrimitiveIterator.OfInt {
+		  private final Node[] stack;
+		  private int depth;
+		  private Node current; // the node last returned by nextInt()
+
+		  private Cursor(Node root, int from) {
+			  stack = new Node[rank(root) + 2]; // a WAVL tree is at most rank + 1 levels high
+			  for (Node cur = root; cur != null; ) { // push the path to the first key not smaller than from
+				  if (cur.key >= from) {
+					  stack[depth++] = cur;
+					  cur = cur.left;
+				  }
+				  else
+					  cur = cur.right;
+			  }
+		  }
+
+		  /**
+		   * public boolean hasNext()
+		   *
+		   * returns true if there are more keys
+		   */
+		  public boolean hasNext() {
+			  return depth > 0;
+		  }
+
+		  /**
+		   * public int nextInt()
+		   *
+		   * moves to the next node and returns its key
+		   */
+		  public int nextInt() {
+			  if (depth == 0)
+				  throw new NoSuchElementException();
+			  current = stack[--depth];
+			  for (Node cur = current.right; cur != null; cur = cur.left) // the successor is the minimum of the right sub-tree
+				  stack[depth++] = cur;
+			  return current.key;
+		  }
+
+		  /**
+		   * public String value()
+		   *
+		   * returns the info of the key last returned by nextInt()
+		   */
+		  public String value() {
+			  if (current == null)
+				  throw new IllegalStateException("nextInt() was not called");
+			  return current.value;
+		  }
+	}
+
+	/**
+	* private static class Node
+	*
+	* an immutable node, that may be shared by many versions
+	*/
+	private static class Node {
+		  private final int key;
+		  private final String value;
+		  private final Node left; // null for an external leaf
+		  private final Node right;
+		  private final int rank;
+		  private final int size; // the number of nodes in the sub-tree
+
+		  Node(int key, String value, Node left, Node right, int rank) {
+			  this.key = key;
+			  this.value = value;
+			  this.left = left;
+			  this.right = right;
+			  this.rank = rank;
+			  this.size = size(left) + size(right) + 1;
+		  }
+	}
+}
@@ -0,0 +1,591 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ *
+ * ShardedWAVLTree
+ *
+ * A thread-safe WAVL tree that partitions the int key space into range shards,
+ * each a WAVLTree with its own lock, so writers to different shards do not wait for each other.
+ * The shard bounds and the shards are published together as an immutable Topology in a volatile field.
+ * A point operation reads it, routes by a binary search over the few shard bounds and locks only
+ * its shard, so it writes no memory shared with operations on other shards.
+ * select, size and the array exports lock all the shards in order and stitch them,
+ * and range scans visit the shards of the range one at a time.
+ * When a shard grows much larger than the average, all the shards are concatenated
+ * with join and cut back into equal parts with split. The old shards are then retired,
+ * and an operation that locked a retired shard retries on the new topology.
+ *
+ */
+
+public class ShardedWAVLTree {
+	private static final int MIN_SKEWED_SIZE = 1 << 12; // smaller shards are never considered skewed
+	private static final int SKEW_FACTOR = 4; // a shard is skewed when it holds this many times the average
+	private static final int SKEW_CHECK_MASK = (1 << 10) - 1; // the other shard sizes are read once per 1024 inserts into a shard
+
+	private volatile Topology topology; // replaced by redistribute, never modified
+
+	/**
+	 * public ShardedWAVLTree(int shardCount)
+	 *
+	 * a constructor of a new empty tree of shardCount shards, splitting the int key space evenly
+	 */
+	public ShardedWAVLTree(int shardCount)
+	{
+		if (shardCount <= 0)
+			throw new IllegalArgumentException("the number of shards must be positive: " + shardCount);
+		int[] bounds = new int[shardCount];
+		Shard[] shards = new Shard[shardCount];
+		long width = (1L << 32) / shardCount;
+		for (int j = 0; j < shardCount; j++) {
+			bounds[j] = (int) (Integer.MIN_VALUE + j * width);
+			shards[j] = new Shard(new WAVLTree());
+		}
+		topology = new Topology(bounds, shards);
+	}
+
+	/**
+	 * public int shardCount()
+	 *
+	 * returns the number of shards
+	 */
+	public int shardCount()
+	{
+		return topology.bounds.length;
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree, otherwise returns null
+	 */
+	public String search(int k)
+	{
+		while (true) {
+			Shard shard = topology.shardOf(k);
+			long stamp = shard.lock.readLock();
+			try {
+				if (!shard.retired)
+					return shard.tree.search(k);
+			}
+			finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i, locking only its shard.
+	 * returns the number of rebalancing operations in the shard, or -1 if key k already exists
+	 */
+	public int insert(int k, String i)
+	{
+		while (true) {
+			Shard shard = topology.shardOf(k);
+			int result;
+			boolean grown;
+			long stamp = shard.lock.writeLock();
+			try {
+				if (shard.retired)
+					continue;
+				result = shard.tree.insert(k, i);
+				grown = (result >= 0) && shard.grew();
+			}
+			finally {
+				shard.lock.unlockWrite(stamp);
+			}
+			if (grown) // shards are rebalanced after the shard lock is released, since redistribute takes all of them
+				rebalanceIfSkewed();
+			return result;
+		}
+	}
+
+	/**
+	 * public String put(int k, String i)
+	 *
+	 * inserts an item with key k and info i, or overwrites the info of key k, locking only its shard.
+	 * returns the previous info of key k, or null if k was not in the tree
+	 */
+	public String put(int k, String i)
+	{
+		while (true) {
+			Shard shard = topology.shardOf(k);
+			String previous;
+			boolean grown;
+			long stamp = shard.lock.writeLock();
+			try {
+				if (shard.retired)
+					continue;
+				previous = shard.tree.put(k, i);
+				grown = shard.grew();
+			}
+			finally {
+				shard.lock.unlockWrite(stamp);
+			}
+			if (grown)
+				rebalanceIfSkewed();
+			return previous;
+		}
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes the item with key k, locking only its shard.
+	 * returns the number of rebalancing operations in the shard, or -1 if key k was not found
+	 */
+	public int delete(int k)
+	{
+		while (true) {
+			Shard shard = topology.shardOf(k);
+			long stamp = shard.lock.writeLock();
+			try {
+				if (shard.retired)
+					continue;
+				int result = shard.tree.delete(k);
+				shard.size = shard.tree.size();
+				return result;
+			}
+			finally {
+				shard.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items, summed over all the shards while they are all locked
+	 */
+	public int size()
+	{
+		while (true) {
+			Topology current = topology;
+			long[] stamps = current.lockAll();
+			try {
+				if (current.retired())
+					continue;
+				int total = 0;
+				for (Shard shard : current.shards)
+					total += shard.tree.size();
+				return total;
+			}
+			finally {
+				current.unlockAll(stamps);
+			}
+		}
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * returns the info of the i'th smallest key, or "-1" if i is out of range, as WAVLTree.select.
+	 * the shard holding the i'th key is found from the shard sizes, while all the shards are locked
+	 */
+	public String select(int i)
+	{
+		while (true) {
+			Topology current = topology;
+			long[] stamps = current.lockAll();
+			try {
+				if (current.retired())
+					continue;
+				if (i > 0) {
+					for (Shard shard : current.shards) {
+						int shardSize = shard.tree.size();
+						if (i <= shardSize)
+							return shard.tree.select(i);
+						i -= shardSize;
+					}
+				}
+				return "-1";
+			}
+			finally {
+				current.unlockAll(stamps);
+			}
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of all the keys, stitched from the shards in order while they are all locked
+	 */
+	public int[] keysToArray()
+	{
+		while (true) {
+			Topology current = topology;
+			long[] stamps = current.lockAll();
+			try {
+				if (current.retired())
+					continue;
+				int total = 0;
+				for (Shard shard : current.shards)
+					total += shard.tree.size();
+				int[] keysArray = new int[total];
+				int offset = 0;
+				for (Shard shard : current.shards) {
+					int[] part = shard.tree.keysToArray();
+					System.arraycopy(part, 0, keysArray, offset, part.length);
+					offset += part.length;
+				}
+				return keysArray;
+			}
+			finally {
+				current.unlockAll(stamps);
+			}
+		}
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns all the infos sorted by their keys, stitched from the shards in order while they are all locked
+	 */
+	public String[] infoToArray()
+	{
+		while (true) {
+			Topology current = topology;
+			long[] stamps = current.lockAll();
+			try {
+				if (current.retired())
+					continue;
+				int total = 0;
+				for (Shard shard : current.shards)
+					total += shard.tree.size();
+				String[] infoArray = new String[total];
+				int offset = 0;
+				for (Shard shard : current.shards) {
+					String[] part = shard.tree.infoToArray();
+					System.arraycopy(part, 0, infoArray, offset, part.length);
+					offset += part.length;
+				}
+				return infoArray;
+			}
+			finally {
+				current.unlockAll(stamps);
+			}
+		}
+	}
+
+	/**
+	 * public int countRange(int lo, int hi)
+	 *
+	 * returns the number of keys in [lo, hi], counting each shard of the range under its own lock
+	 */
+	public int countRange(int lo, int hi)
+	{
+		int[] count = new int[1];
+		forEachShardInRange(lo, hi, (tree, from, to) -> {
+			count[0] += tree.countRange(from, to);
+			return true;
+		});
+		return count[0];
+	}
+
+	/**
+	 * public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	 *
+	 * calls action with every item with a key in [lo, hi] in increasing order.
+	 * the shards of the range are scanned one at a time, each under its own read lock,
+	 * so action must not write to this tree
+	 */
+	public void forEachInRange(int lo, int hi, WAVLTree.IntObjConsumer<String> action)
+	{
+		forEachInRangeWhile(lo, hi, (key, value) -> {
+			action.accept(key, value);
+			return true;
+		});
+	}
+
+	/**
+	 * public boolean forEachInRangeWhile(int lo, int hi, WAVLTree.IntObjPredicate<String> action)
+	 *
+	 * like forEachInRange, but stops as soon as action returns false.
+	 * returns true if the whole range was scanned
+	 */
+	public boolean forEachInRangeWhile(int lo, int hi, WAVLTree.IntObjPredicate<String> action)
+	{
+		return forEachShardInRange(lo, hi, (tree, from, to) -> tree.forEachInRangeWhile(from, to, action));
+	}
+
+	/**
+	 * private boolean forEachShardInRange(int lo, int hi, ShardVisitor visitor)
+	 *
+	 * calls visitor with each shard that holds keys of [lo, hi] in increasing order, under the shard's read lock,
+	 * and with the part of the range that the shard covers. a retired shard is visited again on the new
+	 * topology from the first key not yet visited, so no key is visited twice.
+	 * stops and returns false as soon as visitor returns false
+	 */
+	private boolean forEachShardInRange(int lo, int hi, ShardVisitor visitor)
+	{
+		int from = lo;
+		while (from <= hi) {
+			Topology current = topology;
+			int j = current.route(from);
+			boolean last = (j == current.bounds.length - 1) || (current.bounds[j + 1] > hi);
+			int to = last ? hi : current.bounds[j + 1] - 1;
+			Shard shard = current.shards[j];
+			long stamp = shard.lock.readLock();
+			try {
+				if (shard.retired)
+					continue;
+				if (!visitor.visit(shard.tree, from, to))
+					return false;
+			}
+			finally {
+				shard.lock.unlockRead(stamp);
+			}
+			if (last)
+				break;
+			from = to + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * public synchronized void rebalance()
+	 *
+	 * redistributes the items evenly over the shards, even if no shard is skewed
+	 */
+	public synchronized void rebalance()
+	{
+		redistribute();
+	}
+
+	/**
+	 * private synchronized void rebalanceIfSkewed()
+	 *
+	 * redistributes the items if some shard is still skewed. the monitor keeps rebalances one at a time,
+	 * and point operations never take it
+	 */
+	private synchronized void rebalanceIfSkewed()
+	{
+		Topology current = topology;
+		int total = current.size();
+		for (Shard shard : current.shards) {
+			if (isSkewed(shard.size, total, current.shards.length)) {
+				redistribute();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * private boolean isSkewed(int shardSize, int total, int shardCount)
+	 *
+	 * returns true if a shard of shardSize items is too large for a tree of total items in shardCount shards
+	 */
+	private static boolean isSkewed(int shardSize, int total, int shardCount)
+	{
+		return shardSize > MIN_SKEWED_SIZE && shardSize > (long) SKEW_FACTOR * total / shardCount;
+	}
+
+	/**
+	 * private void redistribute()
+	 *
+	 * concatenates all the shards into one tree with join, and cuts it back into shards of equal
+	 * sizes with split, in O(shards * log n). all the old shards are write-locked and retired, and the
+	 * new topology is published before they are unlocked. must be called holding the monitor
+	 */
+	private void redistribute()
+	{
+		Topology current = topology;
+		Shard[] shards = current.shards;
+		int count = shards.length;
+		long[] stamps = new long[count];
+		for (int j = 0; j < count; j++)
+			stamps[j] = shards[j].lock.writeLock();
+		try {
+			int total = 0;
+			for (Shard shard : shards)
+				total += shard.tree.size();
+			if (total < count) // too few items for shards with distinct bounds
+				return;
+			WAVLTree all = shards[0].tree;
+			for (int j = 1; j < count; j++)
+				all = concat(all, shards[j].tree);
+			int[] newBounds = new int[count];
+			Shard[] newShards = new Shard[count];
+			WAVLTree rest = all;
+			for (int j = count - 1; j > 0; j--) { // cut the pieces from the largest keys down
+				WAVLTree.WAVLNode first = rest.selectEntry((int) ((long) total * j / count) + 1);
+				int k = first.getKey();
+				String info = first.getValue();
+				WAVLTree.Split split = rest.split(k);
+				WAVLTree piece = split.getGreater();
+				piece.insert(k, info);
+				newBounds[j] = k;
+				newShards[j] = new Shard(piece);
+				rest = split.getLess();
+			}
+			newBounds[0] = Integer.MIN_VALUE;
+			newShards[0] = new Shard(rest);
+			for (Shard shard : shards)
+				shard.retired = true;
+			topology = new Topology(newBounds, newShards);
+		}
+		finally {
+			for (int j = 0; j < count; j++)
+				shards[j].lock.unlockWrite(stamps[j]);
+		}
+	}
+
+	/**
+	 * private static WAVLTree concat(WAVLTree a, WAVLTree b)
+	 *
+	 * returns a tree of the items of a and b, where all the keys of a are smaller than those of b,
+	 * by joining them around the minimum of b in O(log n)
+	 */
+	private static WAVLTree concat(WAVLTree a, WAVLTree b)
+	{
+		if (b.empty())
+			return a;
+		WAVLTree.WAVLNode first = b.selectEntry(1);
+		int k = first.getKey();
+		String info = first.getValue();
+		b.delete(k);
+		return WAVLTree.join(a, k, info, b);
+	}
+
+	/**
+	* private static class Topology
+	*
+	* the shard bounds and the shards, published together and never modified.
+	* bounds[j] is the smallest key of shard j, bounds[0] is Integer.MIN_VALUE
+	*/
+	private static class Topology {
+		  private final int[] bounds;
+		  private final Shard[] shards;
+
+		  Topology(int[] bounds, Shard[] shards) {
+			  this.bounds = bounds;
+			  this.shards = shards;
+		  }
+
+		  /**
+		   * private int route(int k)
+		   *
+		   * returns the index of the shard of key k, by a binary search over the shard bounds
+		   * in O(log shards), which is a few steps for any practical number of shards
+		   */
+		  private int route(int k) {
+			  int lo = 0;
+			  int hi = bounds.length - 1;
+			  while (lo < hi) {
+				  int mid = (lo + hi + 1) >>> 1;
+				  if (bounds[mid] <= k)
+					  lo = mid;
+				  else
+					  hi = mid - 1;
+			  }
+			  return lo;
+		  }
+
+		  /**
+		   * private Shard shardOf(int k)
+		   *
+		   * returns the shard of key k
+		   */
+		  private Shard shardOf(int k) {
+			  return shards[route(k)];
+		  }
+
+		  /**
+		   * private boolean retired()
+		   *
+		   * returns true if the shards were replaced by a rebalance. redistribute retires all of them
+		   * at once, so it is enough to look at one
+		   */
+		  private boolean retired() {
+			  return shards[0].retired;
+		  }
+
+		  /**
+		   * private int size()
+		   *
+		   * returns the sum of the shard sizes, read without locking, for the skew check
+		   */
+		  private int size() {
+			  int total = 0;
+			  for (Shard shard : shards)
+				  total += shard.size;
+			  return total;
+		  }
+
+		  /**
+		   * private long[] lockAll()
+		   *
+		   * read-locks all the shards in order and returns their stamps.
+		   * writers hold a single shard lock at a time and redistribute locks in the same order,
+		   * so it cannot deadlock
+		   */
+		  private long[] lockAll() {
+			  long[] stamps = new long[shards.length];
+			  for (int j = 0; j < shards.length; j++)
+				  stamps[j] = shards[j].lock.readLock();
+			  return stamps;
+		  }
+
+		  /**
+		   * private void unlockAll(long[] stamps)
+		   *
+		   * releases the read locks taken by lockAll
+		   */
+		  private void unlockAll(long[] stamps) {
+			  for (int j = 0; j < shards.length; j++)
+				  shards[j].lock.unlockRead(stamps[j]);
+		  }
+	}
+
+	/**
+	* private static class Shard
+	*
+	* a range of the key space, a tree with its items and the lock that guards the tree
+	*/
+	private static class Shard {
+		  private final WAVLTree tree;
+		  private final StampedLock lock = new StampedLock();
+		  private volatile int size; // the size of tree, written under the write lock and read without it by the skew check
+		  private boolean retired; // set under the write lock once the shard was replaced by a rebalance
+
+		  Shard(WAVLTree tree) {
+			  this.tree = tree;
+			  this.size = tree.size();
+		  }
+
+		  /**
+		   * private boolean grew()
+		   *
+		   * records the size of the tree after a write under the write lock.
+		   * returns true if it grew and reached a point where the skew should be checked
+		   */
+		  private boolean grew() {
+			  int newSize = tree.size();
+			  boolean grown = newSize > size;
+			  size = newSize;
+			  return grown && newSize > MIN_SKEWED_SIZE && (newSize & SKEW_CHECK_MASK) == 0;
+		  }
+	}
+
+	/**
+	* private interface ShardVisitor
+	*
+	* a callback of forEachShardInRange, given a shard's tree and the part [from, to] of the range it covers
+	*/
+	private interface ShardVisitor {
+		  boolean visit(WAVLTree tree, int from, int to);
+	}
+}
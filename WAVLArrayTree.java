@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+/**
+ *
+ *
+ * WAVLArrayTree
+ *
+ * A WAVL Tree with the WAVLMap operations of WAVLTree, that keeps its nodes
+ * in parallel primitive arrays instead of WAVLNode objects. It has no WAVLNode,
+ * so getRoot and the operations built on nodes (join, split, cursors, snapshots) are not offered.
+ * A node is an int index into the arrays, and index 0 is the shared external node.
+ * The tree algorithms are in WAVLIndexTree.
+ * A tree holds at most Integer.MAX_VALUE - 9 items, since the arrays stop growing at the
+ * largest length the JVM allows. Inserting past that throws IllegalStateException.
+ *
+ */
+
+public class WAVLArrayTree extends WAVLIndexTree {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 8; // the largest array length every JVM allows
+
+	private int[] key;
+	private int[] rank;
+	private int[] parent;
+	private int[] left;
+	private int[] right;
+	private int[] sub_tree_size;
+	private String[] value;
+
+	/**
+	 * public WAVLArrayTree()
+	 *
+	 * a constructor of a new empty WAVL tree
+	 */
+	public WAVLArrayTree()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * public WAVLArrayTree(int initialCapacity)
+	 *
+	 * a constructor of a new empty WAVL tree with room for initialCapacity items before the arrays grow
+	 */
+	public WAVLArrayTree(int initialCapacity)
+	{
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("negative capacity: " + initialCapacity);
+		if (initialCapacity > maxSize())
+			throw new IllegalArgumentException("capacity above " + maxSize() + ": " + initialCapacity);
+		int capacity = initialCapacity + 1; // index 0 is the external node
+		key = new int[capacity];
+		rank = new int[capacity];
+		parent = new int[capacity];
+		left = new int[capacity];
+		right = new int[capacity];
+		sub_tree_size = new int[capacity];
+		value = new String[capacity];
+		key[EXTERNAL] = -1;
+		rank[EXTERNAL] = -1;
+	}
+
+	/**
+	 * int capacity()
+	 *
+	 * returns the length of the node arrays
+	 */
+	int capacity()
+	{
+		return key.length;
+	}
+
+	/**
+	 * int maxSize()
+	 *
+	 * returns the largest array length, less the external node
+	 */
+	int maxSize()
+	{
+		return MAX_LENGTH - 1;
+	}
+
+	/**
+	 * void grow()
+	 *
+	 * doubles the capacity of all the node arrays, up to MAX_LENGTH
+	 */
+	void grow()
+	{
+		if (key.length == MAX_LENGTH)
+			throw new IllegalStateException("the arrays are at their largest length: " + MAX_LENGTH);
+		int capacity = (int) Math.min(Math.max(2L * key.length, DEFAULT_CAPACITY), MAX_LENGTH);
+		key = Arrays.copyOf(key, capacity);
+		rank = Arrays.copyOf(rank, capacity);
+		parent = Arrays.copyOf(parent, capacity);
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		sub_tree_size = Arrays.copyOf(sub_tree_size, capacity);
+		value = Arrays.copyOf(value, capacity);
+	}
+
+	// accessors of the node arrays
+
+	int key(int node) { return key[node]; }
+	int rank(int node) { return rank[node]; }
+	int size(int node) { return sub_tree_size[node]; }
+	int parent(int node) { return parent[node]; }
+	int left(int node) { return left[node]; }
+	int right(int node) { return right[node]; }
+	String value(int node) { return value[node]; }
+
+	void setKey(int node, int x) { key[node] = x; }
+	void setRank(int node, int x) { rank[node] = x; }
+	void setSize(int node, int x) { sub_tree_size[node] = x; }
+	void setParent(int node, int x) { parent[node] = x; }
+	void setLeft(int node, int x) { left[node] = x; }
+	void setRight(int node, int x) { right[node] = x; }
+	void setValue(int node, String x) { value[node] = x; }
+}
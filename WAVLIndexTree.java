@@ -0,0 +1,615 @@
+/**
+ *
+ *
+ * WAVLIndexTree
+ *
+ * The WAVL tree algorithms shared by WAVLArrayTree and WAVLOffHeapTree, written against int node indices.
+ * A subclass only decides where the node fields are stored, through the accessors at the end.
+ * Index 0 is the shared external node (rank -1, size 0), and is also used as a null parent.
+ * Released indices are kept on a free list, linked through the left field.
+ *
+ */
+
+abstract class WAVLIndexTree implements WAVLMap {
+	static final int EXTERNAL = 0; // the index of the external node, set up by the subclass constructor
+
+	private int root = EXTERNAL; // the index of the root node
+	private int min = EXTERNAL; // the index of the minimum node
+	private int max = EXTERNAL; // the index of the maximum node
+	private int next = 1; // the first index that was never used
+	private int free = EXTERNAL; // the head of the list of released indices
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty()
+	{
+		checkOpen();
+		return root == EXTERNAL;
+	}
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree
+	 * otherwise, returns null
+	 */
+	public String search(int k)
+	{
+		checkOpen();
+		int found = treePosition(k);
+		if (found == EXTERNAL || key(found) != k)
+			return null;
+		return value(found);
+	}
+
+	/**
+	 * private int treePosition(int k)
+	 *
+	 * descends from the root following the key order.
+	 * returns the node with key k if it exists in the tree, otherwise the last
+	 * inner node on the search path (the parent of k's insertion point).
+	 * returns EXTERNAL if the tree is empty
+	 */
+	private int treePosition(int k)
+	{
+		if (root == EXTERNAL)
+			return EXTERNAL;
+		if (k < key(min)) return min;
+		if (k > key(max)) return max;
+		int cur = root;
+		int last = EXTERNAL;
+		while (cur != EXTERNAL) {
+			last = cur;
+			int curKey = key(cur);
+			if (k == curKey)
+				return cur;
+			cur = (k < curKey) ? left(cur) : right(cur);
+		}
+		return last;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i to the WAVL tree.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were necessary.
+	 * returns -1 if an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i)
+	{
+		checkOpen();
+		int position = treePosition(k);
+		if (position != EXTERNAL && key(position) == k)
+			return -1;
+		return insertAt(position, k, i);
+	}
+
+	/**
+	 * public String put(int k, String i)
+	 *
+	 * inserts an item with key k and info i, or overwrites the info if key k already exists.
+	 * returns the previous info of key k, or null if k was not in the tree.
+	 */
+	public String put(int k, String i)
+	{
+		checkOpen();
+		int position = treePosition(k);
+		if (position != EXTERNAL && key(position) == k) {
+			String previous = value(position);
+			setValue(position, i);
+			return previous;
+		}
+		insertAt(position, k, i);
+		return null;
+	}
+
+	/**
+	 * public String putIfAbsent(int k, String i)
+	 *
+	 * inserts an item with key k and info i only if key k is not in the tree.
+	 * returns the current info of key k, or null if the item was inserted.
+	 */
+	public String putIfAbsent(int k, String i)
+	{
+		checkOpen();
+		int position = treePosition(k);
+		if (position != EXTERNAL && key(position) == k)
+			return value(position);
+		insertAt(position, k, i);
+		return null;
+	}
+
+	/**
+	 * public String replace(int k, String i)
+	 *
+	 * replaces the info of key k with i only if key k is already in the tree.
+	 * returns the previous info of key k, or null if k was not in the tree (the tree is not changed).
+	 */
+	public String replace(int k, String i)
+	{
+		checkOpen();
+		int position = treePosition(k);
+		if (position == EXTERNAL || key(position) != k)
+			return null;
+		String previous = value(position);
+		setValue(position, i);
+		return previous;
+	}
+
+	/**
+	 * private int insertAt(int position, int k, String i)
+	 *
+	 * hangs a new leaf under position (EXTERNAL if the tree is empty) and rebalances the tree.
+	 * returns the number of rebalancing operations.
+	 * throws IllegalStateException if the tree already holds maxSize() items
+	 */
+	private int insertAt(int position, int k, String i)
+	{
+		if (size() == maxSize())
+			throw new IllegalStateException("the tree is full: " + size() + " items");
+		int leaf = allocate(k, i);
+		if (position == EXTERNAL) {
+			root = leaf;
+			min = leaf;
+			max = leaf;
+			return 0;
+		}
+		if (k < key(position))
+			setLeft(position, leaf);
+		else
+			setRight(position, leaf);
+		setParent(leaf, position);
+		if (k < key(min))
+			min = leaf;
+		if (k > key(max))
+			max = leaf;
+		for (int cur = position; cur != EXTERNAL; cur = parent(cur))
+			setSize(cur, size(cur) + 1);
+		return balanceTree(leaf);
+	}
+
+	/**
+	 * private int balanceTree(int cur)
+	 *
+	 * balancing the tree bottom-up after an insertion of the new leaf cur.
+	 * counts operations like WAVLTree: promotion 1, single rotation 2, double rotation 5
+	 */
+	private int balanceTree(int cur)
+	{
+		int rebalanceCounter = 0;
+		int p = parent(cur);
+		while (p != EXTERNAL && rank(p) == rank(cur)) { // cur is a 0-child
+			boolean isLeft = left(p) == cur;
+			int brother = isLeft ? right(p) : left(p);
+			if (rank(p) - rank(brother) == 1) { // promote
+				setRank(p, rank(p) + 1);
+				rebalanceCounter++;
+				cur = p;
+				p = parent(cur);
+				continue;
+			}
+			int inner = isLeft ? right(cur) : left(cur);
+			if (rank(cur) - rank(inner) == 2) { // single rotation
+				rotate(cur);
+				setRank(p, rank(p) - 1);
+				rebalanceCounter += 2;
+			}
+			else { // double rotation
+				rotate(inner);
+				rotate(inner);
+				setRank(inner, rank(inner) + 1);
+				setRank(cur, rank(cur) - 1);
+				setRank(p, rank(p) - 1);
+				rebalanceCounter += 5;
+			}
+			break;
+		}
+		return rebalanceCounter;
+	}
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes an item with key k from the binary tree, if it is there.
+	 * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+	 * returns -1 if an item with key k was not found in the tree.
+	 */
+	public int delete(int k)
+	{
+		checkOpen();
+		int selected = treePosition(k);
+		if (selected == EXTERNAL || key(selected) != k)
+			return -1;
+		if (min == selected)
+			min = successor(selected);
+		if (max == selected)
+			max = predecessor(selected);
+		int p = removeFromTree(selected);
+		release(selected);
+		if (p == EXTERNAL)
+			return 0;
+		for (int cur = p; cur != EXTERNAL; cur = parent(cur))
+			setSize(cur, size(left(cur)) + size(right(cur)) + 1);
+		return balanceAfterDelete(p);
+	}
+
+	/**
+	 * private int removeFromTree(int selected)
+	 *
+	 * unlinks selected, replacing a node with two children by its successor.
+	 * returns the lowest node whose child sub-tree got shorter, or EXTERNAL
+	 */
+	private int removeFromTree(int selected)
+	{
+		int selectedLeft = left(selected);
+		int selectedRight = right(selected);
+		if (selectedLeft == EXTERNAL || selectedRight == EXTERNAL) {
+			int child = (selectedLeft != EXTERNAL) ? selectedLeft : selectedRight;
+			replaceChild(parent(selected), selected, child);
+			return parent(selected);
+		}
+		int substitute = selectedRight;
+		while (left(substitute) != EXTERNAL)
+			substitute = left(substitute);
+		int p;
+		if (parent(substitute) == selected) {
+			p = substitute;
+		}
+		else {
+			p = parent(substitute);
+			int substituteRight = right(substitute);
+			setLeft(p, substituteRight);
+			if (substituteRight != EXTERNAL)
+				setParent(substituteRight, p);
+			setRight(substitute, selectedRight);
+			setParent(selectedRight, substitute);
+		}
+		setLeft(substitute, selectedLeft);
+		setParent(selectedLeft, substitute);
+		setRank(substitute, rank(selected));
+		setSize(substitute, size(selected));
+		replaceChild(parent(selected), selected, substitute);
+		return p;
+	}
+
+	/**
+	 * private int balanceAfterDelete(int p)
+	 *
+	 * rebalancing the tree bottom-up after one of p's sub-trees got shorter.
+	 * counts operations like WAVLTree: demote 1, double demote 2, single rotation 3, double rotation 5
+	 */
+	private int balanceAfterDelete(int p)
+	{
+		int rebalancing_counter = 0;
+		while (p != EXTERNAL) {
+			int l = left(p);
+			int r = right(p);
+			int pRank = rank(p);
+			if (l == EXTERNAL && r == EXTERNAL) { // a 2,2 leaf is demoted
+				if (pRank == 0)
+					return rebalancing_counter;
+				setRank(p, 0);
+				rebalancing_counter++;
+				p = parent(p);
+				continue;
+			}
+			int brother;
+			if (pRank - rank(l) == 3)
+				brother = r;
+			else if (pRank - rank(r) == 3)
+				brother = l;
+			else
+				return rebalancing_counter;
+			int brotherRank = rank(brother);
+			if (pRank - brotherRank == 2) { // demote
+				setRank(p, pRank - 1);
+				rebalancing_counter++;
+				p = parent(p);
+				continue;
+			}
+			int outer = (brother == r) ? right(brother) : left(brother);
+			int inner = (brother == r) ? left(brother) : right(brother);
+			if (brotherRank - rank(outer) == 2 && brotherRank - rank(inner) == 2) { // double demote
+				setRank(p, pRank - 1);
+				setRank(brother, brotherRank - 1);
+				rebalancing_counter += 2;
+				p = parent(p);
+				continue;
+			}
+			if (brotherRank - rank(outer) == 1) { // single rotation
+				rotate(brother);
+				setRank(brother, brotherRank + 1);
+				setRank(p, (left(p) == EXTERNAL && right(p) == EXTERNAL) ? 0 : pRank - 1);
+				rebalancing_counter += 3;
+			}
+			else { // double rotation
+				rotate(inner);
+				rotate(inner);
+				setRank(inner, rank(inner) + 2);
+				setRank(brother, brotherRank - 1);
+				setRank(p, pRank - 2);
+				rebalancing_counter += 5;
+			}
+			return rebalancing_counter;
+		}
+		return rebalancing_counter;
+	}
+
+	/**
+	 * private void rotate(int cur)
+	 *
+	 * rotates the edge between cur and its parent, so cur takes the place of its parent.
+	 * sub-tree sizes are updated, ranks are left to the caller
+	 */
+	private void rotate(int cur)
+	{
+		int p = parent(cur);
+		int grandparent = parent(p);
+		if (left(p) == cur) {
+			int inner = right(cur);
+			setLeft(p, inner);
+			if (inner != EXTERNAL)
+				setParent(inner, p);
+			setRight(cur, p);
+		}
+		else {
+			int inner = left(cur);
+			setRight(p, inner);
+			if (inner != EXTERNAL)
+				setParent(inner, p);
+			setLeft(cur, p);
+		}
+		setParent(p, cur);
+		replaceChild(grandparent, p, cur);
+		setSize(p, size(left(p)) + size(right(p)) + 1);
+		setSize(cur, size(left(cur)) + size(right(cur)) + 1);
+	}
+
+	/**
+	 * private void replaceChild(int p, int child, int substitute)
+	 *
+	 * replaces the child pointer of p (or the root if p is EXTERNAL) that points to child with substitute
+	 */
+	private void replaceChild(int p, int child, int substitute)
+	{
+		if (p == EXTERNAL)
+			root = substitute;
+		else if (left(p) == child)
+			setLeft(p, substitute);
+		else
+			setRight(p, substitute);
+		if (substitute != EXTERNAL)
+			setParent(substitute, p);
+	}
+
+	/**
+	 * public String min()
+	 *
+	 * Returns the info of the item with the smallest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String min()
+	{
+		checkOpen();
+		return value(min);
+	}
+
+	/**
+	 * public String max()
+	 *
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty
+	 */
+	public String max()
+	{
+		checkOpen();
+		return value(max);
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty.
+	 */
+	public int[] keysToArray()
+	{
+		checkOpen();
+		int[] keysArray = new int[size()];
+		int node = min;
+		for (int i = 0; i < keysArray.length; i++) {
+			keysArray[i] = key(node);
+			node = successor(node);
+		}
+		return keysArray;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray()
+	{
+		checkOpen();
+		String[] infoArray = new String[size()];
+		int node = min;
+		for (int i = 0; i < infoArray.length; i++) {
+			infoArray[i] = value(node);
+			node = successor(node);
+		}
+		return infoArray;
+	}
+
+	/**
+	 * public int size()
+	 *
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size()
+	{
+		checkOpen();
+		return size(root);
+	}
+
+	/**
+	 * public String select(int i)
+	 *
+	 * Returns the value of the i'th smallest key (return "-1" if i is out of bounds), like WAVLTree.select
+	 */
+	public String select(int i)
+	{
+		checkOpen();
+		if (i > size() || i <= 0)
+			return "-1";
+		int cur = root;
+		while (true) {
+			int leftSize = size(left(cur));
+			if (i == leftSize + 1)
+				return value(cur);
+			if (i <= leftSize) {
+				cur = left(cur);
+			}
+			else {
+				i -= leftSize + 1;
+				cur = right(cur);
+			}
+		}
+	}
+
+	/**
+	 * private int successor(int n)
+	 *
+	 * returns the successor of node n, or EXTERNAL if n is the maximum
+	 */
+	private int successor(int n)
+	{
+		if (right(n) != EXTERNAL) {
+			n = right(n);
+			while (left(n) != EXTERNAL)
+				n = left(n);
+			return n;
+		}
+		int cur = parent(n);
+		while (cur != EXTERNAL && right(cur) == n) {
+			n = cur;
+			cur = parent(n);
+		}
+		return cur;
+	}
+
+	/**
+	 * private int predecessor(int n)
+	 *
+	 * returns the predecessor of node n, or EXTERNAL if n is the minimum
+	 */
+	private int predecessor(int n)
+	{
+		if (left(n) != EXTERNAL) {
+			n = left(n);
+			while (right(n) != EXTERNAL)
+				n = right(n);
+			return n;
+		}
+		int cur = parent(n);
+		while (cur != EXTERNAL && left(cur) == n) {
+			n = cur;
+			cur = parent(n);
+		}
+		return cur;
+	}
+
+	/**
+	 * private int allocate(int k, String i)
+	 *
+	 * returns the index of a new leaf with key k and info i, reusing released indices first
+	 * and growing the storage when all the indices are used
+	 */
+	private int allocate(int k, String i)
+	{
+		int node;
+		if (free != EXTERNAL) {
+			node = free;
+			free = left(node);
+		}
+		else {
+			if (next == capacity())
+				grow();
+			node = next++;
+		}
+		setKey(node, k);
+		setValue(node, i);
+		setRank(node, 0);
+		setParent(node, EXTERNAL);
+		setLeft(node, EXTERNAL);
+		setRight(node, EXTERNAL);
+		setSize(node, 1);
+		return node;
+	}
+
+	/**
+	 * private void release(int node)
+	 *
+	 * puts a deleted node on the free list, dropping its info so it can be garbage collected
+	 */
+	private void release(int node)
+	{
+		setValue(node, null);
+		setLeft(node, free);
+		free = node;
+	}
+
+	/**
+	 * void checkOpen()
+	 *
+	 * called first by every public operation. it does nothing here, a subclass whose storage
+	 * can be released throws IllegalStateException from it after the release
+	 */
+	void checkOpen()
+	{
+	}
+
+	/**
+	 * abstract int capacity()
+	 *
+	 * returns the number of node indices the storage has room for
+	 */
+	abstract int capacity();
+
+	/**
+	 * abstract int maxSize()
+	 *
+	 * returns the largest number of items the storage can hold
+	 */
+	abstract int maxSize();
+
+	/**
+	 * abstract void grow()
+	 *
+	 * makes room for more node indices, keeping the fields of the existing ones
+	 */
+	abstract void grow();
+
+	// accessors of the node fields
+
+	abstract int key(int node);
+	abstract int rank(int node);
+	abstract int size(int node);
+	abstract int parent(int node);
+	abstract int left(int node);
+	abstract int right(int node);
+	abstract String value(int node);
+
+	abstract void setKey(int node, int x);
+	abstract void setRank(int node, int x);
+	abstract void setSize(int node, int x);
+	abstract void setParent(int node, int x);
+	abstract void setLeft(int node, int x);
+	abstract void setRight(int node, int x);
+	abstract void setValue(int node, String x);
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ *
+ * WAVLMap
+ *
+ * The operations shared by the WAVL tree storage backends: WAVLTree (linked node objects),
+ * WAVLArrayTree (parallel primitive arrays) and WAVLOffHeapTree (native memory records).
+ * Code that declares its trees as WAVLMap and creates them with the factories below can
+ * switch backends by changing only the factory call.
+ * The semantics and return values of every operation are those of WAVLTree.
+ *
+ */
+
+public interface WAVLMap extends AutoCloseable {
+
+	/**
+	 * public static WAVLMap newTree()
+	 *
+	 * returns a new empty tree of linked WAVLNode objects
+	 */
+	public static WAVLMap newTree()
+	{
+		return new WAVLTree();
+	}
+
+	/**
+	 * public static WAVLMap newArrayTree(int initialCapacity)
+	 *
+	 * returns a new empty tree kept in primitive arrays, with room for initialCapacity items before they grow
+	 */
+	public static WAVLMap newArrayTree(int initialCapacity)
+	{
+		return new WAVLArrayTree(initialCapacity);
+	}
+
+	/**
+	 * public static WAVLMap newOffHeapTree()
+	 *
+	 * returns a new empty tree whose node records are in native memory. it must be closed
+	 */
+	public static WAVLMap newOffHeapTree()
+	{
+		return new WAVLOffHeapTree();
+	}
+
+	/**
+	 * public boolean empty()
+	 *
+	 * returns true if and only if the tree is empty
+	 */
+	public boolean empty();
+
+	/**
+	 * public String search(int k)
+	 *
+	 * returns the info of an item with key k if it exists in the tree, otherwise returns null
+	 */
+	public String search(int k);
+
+	/**
+	 * public int insert(int k, String i)
+	 *
+	 * inserts an item with key k and info i.
+	 * returns the number of rebalancing operations, or -1 if key k already exists
+	 */
+	public int insert(int k, String i);
+
+	/**
+	 * public String put(int k, String i)
+	 *
+	 * inserts an item with key k and info i, or overwrites the info if key k already exists.
+	 * returns the previous info of key k, or null if k was not in the tree
+	 */
+	public String put(int k, String i);
+
+	/**
+	 * public String putIfAbsent(int k, String i)
+	 *
+	 * inserts an item with key k and info i only if key k is not in the tree.
+	 * returns the current info of key k, or null if the item was inserted
+	 */
+	public String putIfAbsent(int k, String i);
+
+	/**
+	 * public String replace(int k, String i)
+	 *
+	 * replaces the info of key k with i only if key k is already in the tree.
+	 * returns the previous info of key k, or null if k was not in the tree
+	 */
+	public String replace(int k, String i);
+
+	/**
+	 * public int delete(int k)
+	 *
+	 * deletes the item with key k.
+	 * returns the number of rebalancing operations, or -1 if key k was not found
+	 */
+	public int delete(int k);
+
+	/**
+	 * public String min()
+	 *
+	 * returns the info of the item with the smallest key, or null if the tree is empty
+	 */
+	public String min();
+
+	/**
+	 * public String max()
+	 *
+	 * returns the info of the item with the largest key, or null if the tree is empty
+	 */
+	public String max();
+
+	/**
+	 * public int[] keysToArray()
+	 *
+	 * returns a sorted array of the keys in the tree
+	 */
+	public int[] keysToArray();
+
+	/**
+	 * public String[] infoToArray()
+	 *
+	 * returns the infos in the tree sorted by their keys
+	 */
+	public String[] infoToArray();
+
+	/**
+	 * public int size()
+	 *
+	 * returns the number of items in the tree
+	 */
+	public int size();
+
+	/**
+	 * public String select(int i)
+	 *
+	 * returns the info of the i'th smallest key, or "-1" if i is out of range
+	 */
+	public String select(int i);
+
+	/**
+	 * public void close()
+	 *
+	 * releases the memory of the tree that the garbage collector does not manage.
+	 * only WAVLOffHeapTree holds such memory, for the other backends it does nothing
+	 */
+	public default void close()
+	{
+	}
+}
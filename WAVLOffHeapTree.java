@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ *
+ *
+ * WAVLOffHeapTree
+ *
+ * A WAVL Tree with the WAVLMap operations of WAVLTree, whose node records live
+ * outside the java heap, in direct byte buffers.
+ * A node is an int index, and index 0 is the shared external node.
+ * Each record holds the key, rank, size and the parent, left and right indices.
+ * The infos stay on the heap in a table indexed by node, as the only per entry heap data.
+ * The tree algorithms are in WAVLIndexTree.
+ * A tree holds at most 2^31 - 2^16 - 1 items, since node indices are ints and records come in
+ * buffers of 2^16. Inserting past that throws IllegalStateException.
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the -Xmx heap size.
+ * Each item takes 24 bytes of it, so a large tree on a small heap needs the flag raised,
+ * for example -XX:MaxDirectMemorySize=8g for about 300 million items.
+ * The tree must be closed when it is no longer needed. close drops the buffers, and the JVM
+ * frees their memory once they are garbage collected, not at the call itself.
+ *
+ */
+
+public class WAVLOffHeapTree extends WAVLIndexTree {
+	private static final int KEY = 0; // byte offsets of the fields inside a node record
+	private static final int RANK = 4;
+	private static final int SIZE = 8;
+	private static final int PARENT = 12;
+	private static final int LEFT = 16;
+	private static final int RIGHT = 20;
+	private static final int RECORD_BYTES = 24;
+
+	private static final int CHUNK_BITS = 16; // every buffer holds 2^16 records, so growing never copies records
+	private static final int CHUNK_NODES = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_NODES - 1;
+	private static final int MAX_CHUNKS = (1 << (31 - CHUNK_BITS)) - 1; // one more chunk would overflow the int node indices
+
+	private ByteBuffer[] chunks; // the off-heap node records
+	private String[][] values; // the infos, indexed like the records
+	private int chunkCount;
+
+	/**
+	 * public WAVLOffHeapTree()
+	 *
+	 * a constructor of a new empty off-heap WAVL tree
+	 */
+	public WAVLOffHeapTree()
+	{
+		chunks = new ByteBuffer[4];
+		values = new String[4][];
+		addChunk();
+		setKey(EXTERNAL, -1);
+		setRank(EXTERNAL, -1);
+	}
+
+	/**
+	 * public void close()
+	 *
+	 * releases the off-heap records. the direct buffers are freed by the JVM once they are unreachable,
+	 * any use of the tree after close throws IllegalStateException
+	 */
+	public void close()
+	{
+		chunks = null;
+		values = null;
+		chunkCount = 0;
+	}
+
+	/**
+	 * int capacity()
+	 *
+	 * returns the number of records in the buffers
+	 */
+	int capacity()
+	{
+		return chunkCount << CHUNK_BITS;
+	}
+
+	/**
+	 * int maxSize()
+	 *
+	 * returns the number of records in MAX_CHUNKS buffers, less the external node
+	 */
+	int maxSize()
+	{
+		return (MAX_CHUNKS << CHUNK_BITS) - 1;
+	}
+
+	/**
+	 * void grow()
+	 *
+	 * adds another buffer of records
+	 */
+	void grow()
+	{
+		addChunk();
+	}
+
+	/**
+	 * private void addChunk()
+	 *
+	 * allocates another off-heap buffer of records and its info table
+	 */
+	private void addChunk()
+	{
+		if (chunkCount == chunks.length) {
+			chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+			values = Arrays.copyOf(values, 2 * chunkCount);
+		}
+		chunks[chunkCount] = ByteBuffer.allocateDirect(CHUNK_NODES * RECORD_BYTES).order(ByteOrder.nativeOrder());
+		values[chunkCount] = new String[CHUNK_NODES];
+		chunkCount++;
+	}
+
+	/**
+	 * void checkOpen()
+	 *
+	 * throws IllegalStateException if the tree was closed
+	 */
+	void checkOpen()
+	{
+		if (chunks == null)
+			throw new IllegalStateException("the tree is closed");
+	}
+
+	// accessors of the node records
+
+	private int get(int node, int field)
+	{
+		return chunks[node >>> CHUNK_BITS].getInt((node & CHUNK_MASK) * RECORD_BYTES + field);
+	}
+
+	private void set(int node, int field, int x)
+	{
+		chunks[node >>> CHUNK_BITS].putInt((node & CHUNK_MASK) * RECORD_BYTES + field, x);
+	}
+
+	int key(int node) { return get(node, KEY); }
+	int rank(int node) { return get(node, RANK); }
+	int size(int node) { return get(node, SIZE); }
+	int parent(int node) { return get(node, PARENT); }
+	int left(int node) { return get(node, LEFT); }
+	int right(int node) { return get(node, RIGHT); }
+	String value(int node) { return values[node >>> CHUNK_BITS][node & CHUNK_MASK]; }
+
+	void setKey(int node, int x) { set(node, KEY, x); }
+	void setRank(int node, int x) { set(node, RANK, x); }
+	void setSize(int node, int x) { set(node, SIZE, x); }
+	void setParent(int node, int x) { set(node, PARENT, x); }
+	void setLeft(int node, int x) { set(node, LEFT, x); }
+	void setRight(int node, int x) { set(node, RIGHT, x); }
+	void setValue(int node, String x) { values[node >>> CHUNK_BITS][node & CHUNK_MASK] = x; }
+}
@@ -1,3 +1,17 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  *
  *
@@ -5,13 +19,23 @@
  *
  * An implementation of a WAVL Tree.
  * (Haupler, Sen & Tarajan ‘15)
+ * A tree holds at most 2^30 - 1 items, since a node keeps its sub-tree size in 30 bits.
  *
  */
 
-public class WAVLTree {
+public class WAVLTree implements WAVLMap {
 	private WAVLNode min; // a private field of the tree that points the minimum mode
 	private WAVLNode max; // a private field of the tree that points the maximum mode
 	private WAVLNode root; // a private field of the tree that points the root mode
+	private static final WAVLNode EXTERNAL = new WAVLNode(); // the single external node shared by all the leaves of all trees, never modified
+	private static final int PARALLEL_THRESHOLD = 1 << 13; // parallel tasks do ranges of up to this many items sequentially
+	private final int poolCapacity; // the maximal number of deleted nodes kept for reuse, 0 disables recycling
+	private WAVLNode pool; // the deleted nodes kept for reuse, linked through their parent pointers
+	private int poolSize; // the number of nodes in the pool
+	private long poolHits; // the number of new nodes taken from the pool
+	private long poolMisses; // the number of new nodes that had to be allocated
+	private int frozenBelow; // nodes of a smaller epoch may belong to a snapshot, and are copied before they are written
+	private Epochs epochs = new Epochs(); // the snapshots that may share nodes with this tree
 	
 	/**
 	 * public WAVLTree()
@@ -20,11 +44,286 @@ public class WAVLTree {
 	 */
 	public WAVLTree()
 	{
-		root = new WAVLNode();
+		this(0);
+	}
+
+	/**
+	 * public WAVLTree(int poolCapacity)
+	 *
+	 * a constructor of a new empty WAVL tree that recycles up to poolCapacity deleted nodes
+	 * for later insertions, to cut allocations in delete-heavy workloads.
+	 * a node returned by getRoot() or its links must not be kept after its item is deleted,
+	 * since it may come back holding another item
+	 */
+	public WAVLTree(int poolCapacity)
+	{
+		if (poolCapacity < 0)
+			throw new IllegalArgumentException("negative pool capacity: " + poolCapacity);
+		this.poolCapacity = poolCapacity;
+		root = EXTERNAL;
 		this.min = root;
 		this.max = root;
 	}
 	
+	/**
+	 * public static WAVLTree fromSorted(int[] keys, String[] values)
+	 *
+	 * builds a tree of the items (keys[j], values[j]) in O(n), without any rebalancing.
+	 * the keys must be sorted in increasing order and distinct, otherwise IllegalArgumentException is thrown.
+	 * the tree is perfectly balanced: the rank of every node is the height of its sub-tree
+	 */
+	public static WAVLTree fromSorted(int[] keys, String[] values)
+	{
+		checkSorted(keys, values);
+		WAVLTree tree = new WAVLTree();
+		if (keys.length == 0)
+			return tree;
+		tree.root = build(keys, values, 0, keys.length, 0);
+		tree.min = tree.root.getMin();
+		tree.max = tree.root.getMax();
+		return tree;
+	}
+
+	/**
+	 * private static void checkSorted(int[] keys, String[] values)
+	 *
+	 * throws IllegalArgumentException unless keys and values have the same length,
+	 * fit in a tree and the keys are strictly increasing
+	 */
+	private static void checkSorted(int[] keys, String[] values)
+	{
+		if (keys.length != values.length)
+			throw new IllegalArgumentException("got " + keys.length + " keys and " + values.length + " values");
+		if (keys.length > WAVLNode.SIZE_MASK)
+			throw new IllegalArgumentException("too many keys: " + keys.length);
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j - 1] >= keys[j])
+				throw new IllegalArgumentException("keys are not sorted and distinct at index " + j);
+		}
+	}
+
+	/**
+	 * private static WAVLNode build(int[] keys, String[] values, int from, int to, int epoch)
+	 *
+	 * returns the root of a balanced sub-tree of the items in [from, to), which must not be empty,
+	 * made of new nodes of the given epoch.
+	 * the middle item is the root, so a sub-tree of size n has rank floor(log2(n))
+	 */
+	private static WAVLNode build(int[] keys, String[] values, int from, int to, int epoch)
+	{
+		int mid = (from + to) >>> 1;
+		WAVLNode node = new WAVLNode(keys[mid], values[mid]);
+		node.epoch = epoch;
+		WAVLNode left = (from < mid) ? build(keys, values, from, mid, epoch) : EXTERNAL;
+		WAVLNode right = (mid + 1 < to) ? build(keys, values, mid + 1, to, epoch) : EXTERNAL;
+		return linkBalanced(node, left, right, mid - from, to - mid - 1);
+	}
+
+	/**
+	 * private static WAVLNode linkBalanced(WAVLNode node, WAVLNode left, WAVLNode right, int leftSize, int rightSize)
+	 *
+	 * hangs the balanced sub-trees left and right under node and sets its rank differences and size.
+	 * returns node
+	 */
+	private static WAVLNode linkBalanced(WAVLNode node, WAVLNode left, WAVLNode right, int leftSize, int rightSize)
+	{
+		node.left = left;
+		node.right = right;
+		if (left.isInnerNode())
+			left.parent = node;
+		if (right.isInnerNode())
+			right.parent = node;
+		int rank = rankOfSize(leftSize + rightSize + 1);
+		node.setDiffs(rank - rankOfSize(leftSize), rank - rankOfSize(rightSize));
+		node.setSubtreeSize(leftSize + rightSize + 1);
+		return node;
+	}
+
+	/**
+	 * public static WAVLTree parallelFromSorted(int[] keys, String[] values)
+	 *
+	 * builds the same tree as fromSorted on the common fork-join pool
+	 */
+	public static WAVLTree parallelFromSorted(int[] keys, String[] values)
+	{
+		return parallelFromSorted(keys, values, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * public static WAVLTree parallelFromSorted(int[] keys, String[] values, ForkJoinPool pool)
+	 *
+	 * builds the same tree as fromSorted, building the two halves of every large range in parallel on pool.
+	 * ranges of up to PARALLEL_THRESHOLD items are built sequentially by one worker,
+	 * so the nodes of a sub-tree are allocated together in that worker's own allocation buffer
+	 */
+	public static WAVLTree parallelFromSorted(int[] keys, String[] values, ForkJoinPool pool)
+	{
+		checkSorted(keys, values);
+		WAVLTree tree = new WAVLTree();
+		if (keys.length == 0)
+			return tree;
+		tree.root = pool.invoke(new BuildTask(keys, values, 0, keys.length, 0));
+		tree.min = tree.root.getMin();
+		tree.max = tree.root.getMax();
+		return tree;
+	}
+
+	/**
+	* private static class BuildTask
+	*
+	* builds the balanced sub-tree of the items in [from, to) of new nodes of the given epoch, forking the left half
+	*/
+	private static class BuildTask extends RecursiveTask<WAVLNode> {
+		  private static final long serialVersionUID = 1L;
+		  private final int[] keys;
+		  private final String[] values;
+		  private final int from;
+		  private final int to;
+		  private final int epoch;
+
+		  BuildTask(int[] keys, String[] values, int from, int to, int epoch) {
+			  this.keys = keys;
+			  this.values = values;
+			  this.from = from;
+			  this.to = to;
+			  this.epoch = epoch;
+		  }
+
+		  protected WAVLNode compute() {
+			  if (to - from <= PARALLEL_THRESHOLD)
+				  return build(keys, values, from, to, epoch);
+			  int mid = (from + to) >>> 1;
+			  BuildTask leftTask = new BuildTask(keys, values, from, mid, epoch);
+			  leftTask.fork();
+			  WAVLNode node = new WAVLNode(keys[mid], values[mid]);
+			  node.epoch = epoch;
+			  WAVLNode right = new BuildTask(keys, values, mid + 1, to, epoch).compute();
+			  return linkBalanced(node, leftTask.join(), right, mid - from, to - mid - 1);
+		  }
+	}
+
+	/**
+	* private static class InsertTask
+	*
+	* inserts the items in [from, to) into the detached sub-tree node of rank nodeRank, forking the
+	* left half of every large batch. the rank of the result is left in resultRank
+	*/
+	private static class InsertTask extends RecursiveTask<WAVLNode> {
+		  private static final long serialVersionUID = 1L;
+		  private final WAVLNode node;
+		  private final int nodeRank;
+		  private final int[] keys;
+		  private final String[] values;
+		  private final int from;
+		  private final int to;
+		  private final int frozenBelow;
+		  private int resultRank;
+		  private int rebalances;
+
+		  InsertTask(WAVLNode node, int nodeRank, int[] keys, String[] values, int from, int to, int frozenBelow) {
+			  this.frozenBelow = frozenBelow;
+			  this.node = node;
+			  this.nodeRank = nodeRank;
+			  this.keys = keys;
+			  this.values = values;
+			  this.from = from;
+			  this.to = to;
+		  }
+
+		  protected WAVLNode compute() {
+			  if (from == to) {
+				  resultRank = nodeRank;
+				  return node;
+			  }
+			  if (!node.isInnerNode()) { // the rest of the batch becomes a balanced sub-tree
+				  resultRank = rankOfSize(to - from);
+				  return new BuildTask(keys, values, from, to, frozenBelow).compute(); // new nodes are writable
+			  }
+			  int position = Arrays.binarySearch(keys, from, to, node.key);
+			  int split = (position >= 0) ? position : -position - 1; // the first key not smaller than node.key
+			  int next = (position >= 0) ? split + 1 : split; // an existing key is skipped
+			  WAVLNode left = node.left;
+			  WAVLNode right = node.right;
+			  if (left.isInnerNode())
+				  left.parent = null;
+			  if (right.isInnerNode())
+				  right.parent = null;
+			  InsertTask leftTask = new InsertTask(left, nodeRank - node.diff(true), keys, values, from, split, frozenBelow);
+			  InsertTask rightTask = new InsertTask(right, nodeRank - node.diff(false), keys, values, next, to, frozenBelow);
+			  WAVLNode newLeft;
+			  WAVLNode newRight;
+			  if (to - from > PARALLEL_THRESHOLD) {
+				  leftTask.fork();
+				  newRight = rightTask.compute();
+				  newLeft = leftTask.join();
+			  }
+			  else {
+				  newLeft = leftTask.compute();
+				  newRight = rightTask.compute();
+			  }
+			  Splicer splicer = new Splicer(frozenBelow);
+			  WAVLNode result = splicer.join(newLeft, leftTask.resultRank, node, newRight, rightTask.resultRank);
+			  resultRank = splicer.rank;
+			  rebalances = leftTask.rebalances + rightTask.rebalances + splicer.rebalances;
+			  return result;
+		  }
+	}
+
+	/**
+	* private static class ExportTask
+	*
+	* writes the keys (if keys is not null) or the infos of the sub-tree node in increasing order,
+	* starting at offset. large sub-trees write their left side in a forked task
+	*/
+	private static class ExportTask extends RecursiveAction {
+		  private static final long serialVersionUID = 1L;
+		  private final WAVLNode node;
+		  private final int offset;
+		  private final int[] keys;
+		  private final String[] infos;
+
+		  ExportTask(WAVLNode node, int offset, int[] keys, String[] infos) {
+			  this.node = node;
+			  this.offset = offset;
+			  this.keys = keys;
+			  this.infos = infos;
+		  }
+
+		  protected void compute() {
+			  int size = node.getSubtreeSize();
+			  if (size <= PARALLEL_THRESHOLD) { // walk the sub-tree in order from its minimum
+				  WAVLNode cur = node.getMin();
+				  for (int i = offset; i < offset + size; i++) {
+					  if (keys != null)
+						  keys[i] = cur.key;
+					  else
+						  infos[i] = cur.value;
+					  cur = step(cur, true);
+				  }
+				  return;
+			  }
+			  int position = offset + node.left.getSubtreeSize(); // the index of node itself
+			  ExportTask leftTask = new ExportTask(node.left, offset, keys, infos);
+			  leftTask.fork();
+			  if (keys != null)
+				  keys[position] = node.key;
+			  else
+				  infos[position] = node.value;
+			  new ExportTask(node.right, position + 1, keys, infos).compute();
+			  leftTask.join();
+		  }
+	}
+
+	/**
+	 * private static int rankOfSize(int size)
+	 *
+	 * returns the rank of a balanced sub-tree of the given size built by build, -1 for an empty one
+	 */
+	private static int rankOfSize(int size)
+	{
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
 	/**
 	  * public boolean empty()
 	  *
@@ -46,26 +345,187 @@ public class WAVLTree {
 	{
 		if (k == min.key) return min.value;
 		if (k == max.key) return max.value;
-		WAVLNode found = rec_search(k, root);
-		if (found == null)
+		WAVLNode found = treePosition(k);
+		if (found == null || found.key != k)
 			return null;
 		return found.getValue();
 	}
-  
-	private WAVLNode rec_search(int k, WAVLNode node)
-  {
-	  if(node.isInnerNode()){ // If not external
-	        if(node.getKey() == k){
-	           return node;
-	        } else {
-	        	WAVLNode foundNode = rec_search(k, node.getLeft());
-	            if(foundNode == null) {
-	                foundNode = rec_search(k, node.getRight());
-	            }
-	            return foundNode;
-	         }
-	    } else return null;
-  }
+
+	/**
+	 * public WAVLNode floorEntry(int k)
+	 *
+	 * returns the node of the largest key smaller than or equal to k, or null if there is none.
+	 * like the other navigation queries, it is a single descent from the root that allocates nothing
+	 */
+	public WAVLNode floorEntry(int k)
+	{
+		return navigate(k, true, true);
+	}
+
+	/**
+	 * public WAVLNode ceilingEntry(int k)
+	 *
+	 * returns the node of the smallest key larger than or equal to k, or null if there is none
+	 */
+	public WAVLNode ceilingEntry(int k)
+	{
+		return navigate(k, false, true);
+	}
+
+	/**
+	 * public WAVLNode lowerEntry(int k)
+	 *
+	 * returns the node of the largest key strictly smaller than k, or null if there is none
+	 */
+	public WAVLNode lowerEntry(int k)
+	{
+		return navigate(k, true, false);
+	}
+
+	/**
+	 * public WAVLNode higherEntry(int k)
+	 *
+	 * returns the node of the smallest key strictly larger than k, or null if there is none
+	 */
+	public WAVLNode higherEntry(int k)
+	{
+		return navigate(k, false, false);
+	}
+
+	/**
+	 * public Integer floorKey(int k)
+	 *
+	 * returns the largest key smaller than or equal to k, or null if there is none
+	 */
+	public Integer floorKey(int k)
+	{
+		return keyOf(floorEntry(k));
+	}
+
+	/**
+	 * public Integer ceilingKey(int k)
+	 *
+	 * returns the smallest key larger than or equal to k, or null if there is none
+	 */
+	public Integer ceilingKey(int k)
+	{
+		return keyOf(ceilingEntry(k));
+	}
+
+	/**
+	 * public Integer lowerKey(int k)
+	 *
+	 * returns the largest key strictly smaller than k, or null if there is none
+	 */
+	public Integer lowerKey(int k)
+	{
+		return keyOf(lowerEntry(k));
+	}
+
+	/**
+	 * public Integer higherKey(int k)
+	 *
+	 * returns the smallest key strictly larger than k, or null if there is none
+	 */
+	public Integer higherKey(int k)
+	{
+		return keyOf(higherEntry(k));
+	}
+
+	/**
+	 * private static Integer keyOf(WAVLNode node)
+	 *
+	 * returns the key of node, or null if node is null
+	 */
+	private static Integer keyOf(WAVLNode node)
+	{
+		return (node == null) ? null : node.key;
+	}
+
+	/**
+	 * private WAVLNode navigate(int k, boolean below, boolean inclusive)
+	 *
+	 * descends from the root once, remembering the last node on the wanted side of k.
+	 * returns the nearest node below k (or above k if below is false), which may be the node
+	 * with key k itself if inclusive is true, or null if there is none
+	 */
+	private WAVLNode navigate(int k, boolean below, boolean inclusive)
+	{
+		WAVLNode cur = root;
+		WAVLNode best = null;
+		while (cur.isInnerNode()) {
+			if (k == cur.key && inclusive)
+				return cur;
+			if (below ? cur.key < k : cur.key > k) { // a candidate, a nearer one can only be deeper towards k
+				best = cur;
+				cur = below ? cur.right : cur.left;
+			}
+			else
+				cur = below ? cur.left : cur.right;
+		}
+		return best;
+	}
+
+	/**
+	 * private WAVLNode treePosition(int k)
+	 *
+	 * descends from the root following the key order, without recursion.
+	 * returns the node with key k if it exists in the tree, otherwise the last
+	 * inner node on the search path (the parent of k's insertion point).
+	 * a key smaller than the minimum or larger than the maximum is placed without descending.
+	 * returns null if the tree is empty
+	 */
+	private WAVLNode treePosition(int k)
+	{
+		if (!root.isInnerNode())
+			return null;
+		if (k < min.key) return min; // the new minimum always hangs to the left of the old one
+		if (k > max.key) return max; // and the new maximum to the right of the old one
+		WAVLNode cur = root;
+		WAVLNode last = null;
+		while (cur.isInnerNode()) {
+			last = cur;
+			if (k == cur.key)
+				return cur;
+			cur = (k < cur.key) ? cur.left : cur.right; // go to the side where k should be
+		}
+		return last;
+	}
+
+	/**
+	 * private WAVLNode writePosition(int k)
+	 *
+	 * returns the same node as treePosition(k), after making every node on the path to it writable:
+	 * while a snapshot is open, a node that may belong to it is replaced by a copy
+	 */
+	private WAVLNode writePosition(int k)
+	{
+		checkThawed();
+		if (frozenBelow == 0) // no node belongs to an open snapshot
+			return treePosition(k);
+		if (!root.isInnerNode())
+			return null;
+		WAVLNode cur = unshare(root);
+		while (k != cur.key) {
+			WAVLNode next = (k < cur.key) ? cur.left : cur.right;
+			if (!next.isInnerNode())
+				break;
+			cur = unshare(next);
+		}
+		return cur;
+	}
+
+	/**
+	 * private void checkThawed()
+	 *
+	 * stops copying nodes once every snapshot that may share nodes with the tree was closed.
+	 * a stale frozenBelow only costs extra copies, so it is checked at the start of the writes
+	 */
+	private void checkThawed()
+	{
+		if (frozenBelow != 0 && epochs.isThawed())
+			frozenBelow = 0;
+	}
   
   /**
    	* public int insert(int k, String i)
@@ -76,389 +536,1284 @@ public class WAVLTree {
    * returns -1 if an item with key k already exists in the tree.
    */
 	public int insert(int k, String i) {
-          int rebalanceCounter = 0;
-          if (search(k) != null)
+          WAVLNode position = writePosition(k);
+          if (position != null && position.key == k)
         	  return -1;
-          if (root.rank == -1) { // insertion in case the tree is empty
-        	  this.root = new WAVLNode(k, i);
-        	  this.min = root;
-        	  this.max = root;
-          }
-          else if (k < this.min.key) {  // insertion in case the new key is the minimum
-        	  rebalanceCounter = insert(k, i, min);
-        	  this.min = min.left;
-          }
-          else if (k > this.max.key) {  // insertion in case the new key is the maximum
-        	  rebalanceCounter = insert(k, i, max);
-        	  this.max = max.right;
-          }
-          else {  
-        	  rebalanceCounter = insert(k, i, root);
-          }
-          return rebalanceCounter;
+          return insertAt(position, k, i);
    }
-   
-	private int insert(int k, String i, WAVLNode cur) {
-	   int insertBalanceCounter = 0;
-	   if (k < cur.key) {
-		   if (cur.left.rank != -1) { // recursively inserts to the left-subtree
-			   insertBalanceCounter += insert(k ,i , cur.left);
-		   }
-		   else { // we've reached an insertion point and insert the new leaf 
-			   WAVLNode newLeaf = new WAVLNode(k, i);
-			   cur.left = newLeaf;
-			   cur.left.parent = cur;
-			   int tempRank = cur.rank;
-			   cur.updateRank();
-			   if (cur.rank != tempRank)
-				   insertBalanceCounter++;
-			   updateSubTreeSize(cur); // update sub-tree size for all parents
+
+   /**
+    * public String put(int k, String i)
+    *
+    * inserts an item with key k and info i, or overwrites the info if key k already exists.
+    * the tree is descended only once.
+    * returns the previous info of key k, or null if k was not in the tree.
+    */
+	public String put(int k, String i) {
+		   WAVLNode position = writePosition(k);
+		   if (position != null && position.key == k) { // overwrite the existing item
+			   String previous = position.value;
+			   position.value = i;
+			   return previous;
 		   }
+		   insertAt(position, k, i);
+		   return null;
+	}
+
+   /**
+    * public String putIfAbsent(int k, String i)
+    *
+    * inserts an item with key k and info i only if key k is not in the tree.
+    * the tree is descended only once.
+    * returns the current info of key k, or null if the item was inserted.
+    */
+	public String putIfAbsent(int k, String i) {
+		   WAVLNode position = writePosition(k);
+		   if (position != null && position.key == k)
+			   return position.value;
+		   insertAt(position, k, i);
+		   return null;
+	}
+
+   /**
+    * public String replace(int k, String i)
+    *
+    * replaces the info of key k with i only if key k is already in the tree.
+    * returns the previous info of key k, or null if k was not in the tree (the tree is not changed).
+    */
+	public String replace(int k, String i) {
+		   WAVLNode position = writePosition(k);
+		   if (position == null || position.key != k)
+			   return null;
+		   String previous = position.value;
+		   position.value = i;
+		   return previous;
+	}
+
+   /**
+    * public int insertAll(int[] sortedKeys, String[] values)
+    *
+    * inserts the items (sortedKeys[j], values[j]); sortedKeys must be strictly increasing.
+    * the batch is split by the root key, the two halves are inserted into the two sub-trees
+    * in parallel on the common fork-join pool, and the results are joined back under the root.
+    * keys that already exist in the tree are skipped, as in insert.
+    * returns the total number of rebalancing operations of the joins
+    */
+	public int insertAll(int[] sortedKeys, String[] values) {
+		   checkSorted(sortedKeys, values);
+		   if ((long) size() + sortedKeys.length > WAVLNode.SIZE_MASK)
+			   throw new IllegalArgumentException("the tree would be too large");
+		   if (sortedKeys.length == 0)
+			   return 0;
+		   checkThawed();
+		   InsertTask task = new InsertTask(root, root.getRank(), sortedKeys, values, 0, sortedKeys.length, frozenBelow);
+		   setRoot(ForkJoinPool.commonPool().invoke(task));
+		   return task.rebalances;
+	}
+
+   /**
+    * private int insertAt(WAVLNode position, int k, String i)
+    *
+    * hangs a new leaf with key k and info i under position, the insertion point found by treePosition(k)
+    * (null if the tree is empty), updates min, max and the sub-tree sizes and rebalances the tree.
+    * returns the number of rebalancing operations.
+    * throws IllegalStateException if the tree already holds the maximal number of items
+    */
+	private int insertAt(WAVLNode position, int k, String i) {
+	   if (size() == WAVLNode.SIZE_MASK) // one more item would carry into the rank difference bits of the root
+		   throw new IllegalStateException("the tree is full: " + size() + " items");
+	   WAVLNode newLeaf = newNode(k, i);
+	   if (position == null) { // insertion in case the tree is empty
+		   this.root = newLeaf;
+		   this.min = root;
+		   this.max = root;
+		   return 0;
 	   }
-	   else if (k > cur.key) { // the symmetrical case with right-subtree 
-		   if (cur.right.rank != -1) {
-			   insertBalanceCounter += insert(k, i, cur.right);
-		   }
-		   else{ // we've reached an insertion point and insert the new leaf
-			   WAVLNode newLeaf = new WAVLNode(k, i);
-			   cur.right = newLeaf;
-			   cur.right.parent = cur;
-			   int tempRank = cur.rank;
-			   cur.updateRank();
-			   if (cur.rank != tempRank)
-				   insertBalanceCounter++;
-			   updateSubTreeSize(cur); // update sub-tree sizes to all parents 
-		   }
-	   } 
-	   return balanceTree(cur) + insertBalanceCounter; //balancing the tree and returning the number of balancing operations
+	   if (k < position.key)
+		   position.left = newLeaf;
+	   else
+		   position.right = newLeaf;
+	   newLeaf.parent = position;
+	   if (k < this.min.key) // insertion in case the new key is the minimum
+		   this.min = newLeaf;
+	   if (k > this.max.key) // insertion in case the new key is the maximum
+		   this.max = newLeaf;
+	   updateSubTreeSize(position); // update sub-tree sizes to all parents
+	   return balanceTree(newLeaf); //balancing the tree and returning the number of balancing operations
    }
    
    /**
     * private int balanceTree(WAVLNode cur)
     * 
-    * balancing the tree after an insertion of new node
+    * balancing the tree after an insertion of the new leaf cur, in one bottom-up pass
     * promoting the rank and rotating the nodes to get a balanced tree
-    * 
+    * the loop works on the rank-difference bits only: a 0-child is kept with its 1-difference bit
+    * while it climbs, and the bits of the rotated nodes are rewritten from the cases
+    * a promotion counts as one operation, a single rotation as two (rotate and demote)
+    * and a double rotation as five (two rotations and three rank changes)
     */
 	private int balanceTree(WAVLNode cur) {
+	   WAVLNode parent = cur.parent;
+	   if (parent == null)
+		   return 0;
+	   boolean leftSide = (parent.left == cur);
+	   if (parent.diff(leftSide) == 2) { // the new leaf replaced an external 2-child
+		   parent.setDiff(leftSide, 1);
+		   return 0;
+	   }
+	   int rebalanceCounter = balanceZeroChild(cur, frozenBelow);
+	   fixRoot();
+	   return rebalanceCounter;
+   }
+
+   /**
+    * private static int balanceZeroChild(WAVLNode cur, int frozenBelow)
+    *
+    * the rebalancing loop of an insertion, where cur is a 0-child of its parent.
+    * besides the cases of an insertion it handles a 0-child whose children are both 1-children,
+    * which a join can create: cur is rotated above its parent and promoted, and the loop goes on.
+    * the nodes on the path of cur must be writable, and a grandchild rotated off the path is unshared.
+    * returns the number of rebalancing operations, the root of the tree is not updated
+    */
+	private static int balanceZeroChild(WAVLNode cur, int frozenBelow) {
 	   int rebalanceCounter = 0;
-	   if (!cur.getLeft().isInnerNode() || !cur.getRight().isInnerNode()) {
-		   while (cur.parent != null && ((cur.parent.rank - cur.rank == 0) && (cur.parent.rank - cur.getBrother().rank == 1))) { // CASE 1 Promote 
-			   cur.parent.rank++;
-			   cur = cur.getParent();
+	   while (true) { // cur is a 0-child of its parent
+		   WAVLNode parent = cur.parent;
+		   boolean leftSide = (parent.left == cur);
+		   if (parent.diff(!leftSide) == 1) { // CASE 1 Promote
+			   parent.setDiff(!leftSide, 2);
 			   rebalanceCounter++;
+			   cur = parent;
 		   }
-		   // after we're done with the promotions, we get to the terminal operations :
-		   // in case we've reached the root :
-		   if (cur.parent == null) return rebalanceCounter; 
-		   // in case we need to make rotations :
-		   int balanceValue = balanceValue(cur.parent);  
-		   if (balanceValue > 1 && cur.rank - cur.left.rank == 1 &&
-				   cur.rank - cur.right.rank == 2) {  //left left rotation - CASE 1-2
-			   rotate(1, cur.getBrother(), cur.getParent(), cur);
-			   cur.getRight().updateRank();
-			   rebalanceCounter += 2;
+		   else if (cur.diff(!leftSide) == 2) { // CASE 2 single rotation, the child of cur facing its brother is a 2-child
+			   rotate(cur);
+			   parent.setDiffs(1, 1);
+			   cur.setDiffs(1, 1);
+			   return rebalanceCounter + 2;
 		   }
-		   else if(balanceValue < -1 && cur.rank - cur.right.rank  == 1 &&
-				   cur.rank - cur.left.rank == 2) { //right right rotation - CASE 2-1
-			   rotate(0, cur.getBrother(), cur.getParent(), cur);
-			   cur.getLeft().updateRank();
+		   else if (cur.diff(leftSide) == 2) { // CASE 3 double rotation
+			   WAVLNode inner = unshare(cur.child(!leftSide), frozenBelow); // the child of cur facing its brother
+			   int innerNear = inner.diff(leftSide); // the grandchild that moves under cur
+			   int innerFar = inner.diff(!leftSide); // the grandchild that moves under parent
+			   rotate(inner);
+			   rotate(inner);
+			   cur.setDiff(leftSide, 1);
+			   cur.setDiff(!leftSide, innerNear);
+			   parent.setDiff(leftSide, innerFar);
+			   parent.setDiff(!leftSide, 1);
+			   inner.setDiffs(1, 1);
+			   return rebalanceCounter + 5;
+		   }
+		   else { // CASE 4 (joins only) cur is a 1,1 node, rotate it up and promote it
+			   rotate(cur);
+			   parent.setDiff(leftSide, 1);
+			   parent.setDiff(!leftSide, 2);
+			   cur.setDiff(leftSide, 2);
+			   cur.setDiff(!leftSide, 1);
 			   rebalanceCounter += 2;
 		   }
-		   else if(balanceValue > 1 && cur.rank - cur.left.rank == 2  &&
-				   cur.rank - cur.right.rank == 1) {  //left right rotation - CASE 2-1
-			   rotate(0, cur.getLeft(), cur, cur.getRight());
-			   rotate(1, cur.getParent().getBrother(), cur.getParent().getParent(), cur.getParent());
-			   cur.getBrother().updateRank();
-			   cur.updateRank();
-			   cur.getParent().updateRank();
-			   rebalanceCounter += 5;
+		   // cur went up one rank in its parent
+		   WAVLNode next = cur.parent;
+		   if (next == null)
+			   return rebalanceCounter;
+		   boolean nextSide = (next.left == cur);
+		   if (next.diff(nextSide) == 2) { // cur was a 2-child and is now a 1-child
+			   next.setDiff(nextSide, 1);
+			   return rebalanceCounter;
 		   }
-		   else if(balanceValue < -1 &&  cur.getRank() - cur.getRight().getRank() == 2  &&
-				  cur.getRank() - cur.getLeft().getRank()== 1) { //right left rotation - CASE 1-2
-			   rotate(1, cur.getRight(), cur, cur.getLeft());
-			   rotate(0, cur.getParent().getBrother(), cur.getParent().getParent(), cur.getParent());
-			   cur.getBrother().updateRank();
-			   cur.updateRank();
-			   cur.getParent().updateRank();
-			   rebalanceCounter += 5;
+	   }
+   }
+
+   /**
+    * private void fixRoot()
+    *
+    * moves the root pointer up after rotations at the top of the tree
+    */
+	private void fixRoot() {
+	   while (root.parent != null)
+		   root = root.parent;
+   }
+
+   /**
+    * private void updateSubTreeSize(WAVLNode cur)
+    * 
+    * updates the subTreeSize of all the parents of a current node
+    * after insertion to this node. 
+    */
+	private void updateSubTreeSize(WAVLNode cur){
+	   while (cur != null){ // until we reached the root 
+		   if (cur.isInnerNode()) 
+			   cur.setSubtreeSize(cur.getLeft().getSubtreeSize() + cur.getRight().getSubtreeSize() + 1);
+		   cur = cur.getParent();
+		   
+	   }
+	}
+	
+   /**
+    * public int delete(int k)
+   *
+   * deletes an item with key k from the binary tree, if it is there;
+   * the tree must remain valid (keep its invariants).
+   * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
+   * returns -1 if an item with key k was not found in the tree.
+   */
+	public int delete(int k)	 {
+       WAVLNode selected = writePosition(k); // finding the node we want to delete
+       if (selected == null || selected.key != k)
+    	   return -1;
+       if (min == selected)
+    	   min = successor(selected);
+       if (max == selected)
+    	   max = predecessor(selected);
+       WAVLNode parent; // the parent of the position that lost rank
+       boolean leftSide; // the side of that position
+       if (!selected.left.isInnerNode() || !selected.right.isInnerNode()) { // a leaf or a unary node
+    	   parent = selected.parent;
+    	   leftSide = (parent != null && parent.left == selected);
+    	   replace(selected, selected.left.isInnerNode() ? selected.left : selected.right);
+       }
+       else { // an inner node is replaced by its successor, which has no left child
+    	   WAVLNode substitute = unshare(selected.right); // the path to the successor is made writable
+    	   while (substitute.left.isInnerNode())
+    		   substitute = unshare(substitute.left);
+    	   if (substitute.parent == selected) {
+    		   parent = substitute;
+    		   leftSide = false;
+    	   }
+    	   else {
+    		   parent = substitute.parent;
+    		   leftSide = true;
+    		   parent.left = substitute.right;
+    		   if (substitute.right.isInnerNode())
+    			   substitute.right.parent = parent;
+    		   substitute.right = selected.right;
+    		   substitute.right.parent = substitute;
+    	   }
+    	   substitute.left = selected.left;
+    	   substitute.left.parent = substitute;
+    	   substitute.meta = selected.meta; // takes over the rank differences and the size
+    	   replace(selected, substitute);
+       }
+       release(selected);
+       if (parent == null)
+    	   return 0;
+       updateSubTreeSize(parent);
+       int rebalancing_counter = balanceAfterDelete(parent, leftSide);
+       fixRoot();
+       return rebalancing_counter;
+   }
+
+   /**
+    * private WAVLNode newNode(int k, String i)
+    *
+    * returns a new leaf with key k and info i, taken from the pool of deleted nodes if it is not empty
+    */
+	private WAVLNode newNode(int k, String i) {
+	   if (pool == null) {
+		   poolMisses++;
+		   WAVLNode node = new WAVLNode(k, i);
+		   node.epoch = frozenBelow;
+		   return node;
+	   }
+	   WAVLNode node = pool;
+	   pool = node.parent;
+	   poolSize--;
+	   poolHits++;
+	   node.key = k;
+	   node.value = i;
+	   node.parent = null;
+	   node.left = EXTERNAL;
+	   node.right = EXTERNAL;
+	   node.meta = 1;
+	   node.epoch = frozenBelow;
+	   return node;
+   }
+
+   /**
+    * private void release(WAVLNode node)
+    *
+    * puts a node that was unlinked from the tree in the pool, unless the pool is full
+    * or the node may belong to a snapshot. the info is dropped so it can be garbage collected
+    */
+	private void release(WAVLNode node) {
+	   if (poolSize == poolCapacity || node.epoch < frozenBelow)
+		   return;
+	   node.value = null;
+	   node.left = EXTERNAL;
+	   node.right = EXTERNAL;
+	   node.parent = pool;
+	   pool = node;
+	   poolSize++;
+   }
+
+   /**
+    * public long getPoolHits()
+    *
+    * returns the number of inserted nodes that were recycled from deleted ones
+    */
+	public long getPoolHits() {
+	   return poolHits;
+   }
+
+   /**
+    * public long getPoolMisses()
+    *
+    * returns the number of inserted nodes that were allocated because the pool was empty
+    */
+	public long getPoolMisses() {
+	   return poolMisses;
+   }
+
+   /**
+    * private int balanceAfterDelete(WAVLNode parent, boolean leftSide)
+    *
+    * rebalancing the tree bottom-up after the child of parent on the given side lost one rank.
+    * the shrunk child may be the external node, so the loop follows parents and sides.
+    * a 3-child is kept with its 2-difference bit while it is being fixed
+    * a demotion counts as one operation, a single rotation as three and a double rotation as five
+    * the brother and the nephew that are written are unshared first. the root of the tree is not updated
+    */
+	private int balanceAfterDelete(WAVLNode parent, boolean leftSide) {
+	   int rebalancing_counter = 0;
+	   while (true) {
+		   if (parent.diff(leftSide) == 1) { // the child becomes a 2-child
+			   parent.setDiff(leftSide, 2);
+			   if (!parent.isLeaf())
+				   return rebalancing_counter;
+			   parent.setDiffs(1, 1); // CASE LEAF a 2,2 leaf is demoted
+			   rebalancing_counter++;
+		   }
+		   else if (parent.diff(!leftSide) == 2) { // CASE 1 demote a 3,2 node
+			   parent.setDiff(!leftSide, 1);
+			   rebalancing_counter++;
+		   }
+		   else {
+			   WAVLNode brother = unshare(parent.child(!leftSide));
+			   int outerDiff = brother.diff(!leftSide); // the child of the brother away from the shrunk side
+			   int innerDiff = brother.diff(leftSide);
+			   if (outerDiff == 2 && innerDiff == 2) { // CASE 2 double demote, the bits of parent stay 2,1
+				   brother.setDiffs(1, 1);
+				   rebalancing_counter += 2;
+			   }
+			   else if (outerDiff == 1) { // CASE 3 single rotation
+				   rotate(brother);
+				   if (parent.isLeaf()) { // parent became a leaf and is demoted twice
+					   parent.setDiffs(1, 1);
+					   brother.setDiff(leftSide, 2);
+				   }
+				   else {
+					   parent.setDiff(leftSide, 2);
+					   parent.setDiff(!leftSide, innerDiff);
+					   brother.setDiff(leftSide, 1);
+				   }
+				   brother.setDiff(!leftSide, 2);
+				   return rebalancing_counter + 3;
+			   }
+			   else { // CASE 4 double rotation
+				   WAVLNode inner = unshare(brother.child(leftSide));
+				   int innerNear = inner.diff(leftSide); // the grandchild that moves under parent
+				   int innerFar = inner.diff(!leftSide); // the grandchild that moves under brother
+				   rotate(inner);
+				   rotate(inner);
+				   parent.setDiff(leftSide, 1);
+				   parent.setDiff(!leftSide, innerNear);
+				   brother.setDiff(leftSide, innerFar);
+				   brother.setDiff(!leftSide, 1);
+				   inner.setDiffs(2, 2);
+				   return rebalancing_counter + 5;
+			   }
 		   }
+		   // parent was demoted, so it lost one rank in its own parent
+		   WAVLNode cur = parent;
+		   parent = cur.parent;
+		   if (parent == null)
+			   return rebalancing_counter;
+		   leftSide = (parent.left == cur);
 	   }
-	   return rebalanceCounter;
-	   
    }
    
-	   /**
-    * private int balanceValue(WAVLNode cur)
+   /**
+    * private static void rotate(WAVLNode cur)
+    * 
+    * rotates the edge between cur and its parent, so cur takes the place of its parent
+    * and the parent becomes its child. sub-tree sizes are updated, rank-difference bits are left to the caller.
+    * parent pointers are never written into the external node.
+    * a rotation at the top leaves cur with a null parent, and the tree's root is fixed by the caller
+    */
+	private static void rotate(WAVLNode cur){
+	   WAVLNode parent = cur.parent;
+	   WAVLNode grandparent = parent.parent;
+	   if (parent.left == cur) {
+		   WAVLNode inner = cur.right;
+		   parent.left = inner;
+		   if (inner.isInnerNode())
+			   inner.parent = parent;
+		   cur.right = parent;
+	   }
+	   else {
+		   WAVLNode inner = cur.left;
+		   parent.right = inner;
+		   if (inner.isInnerNode())
+			   inner.parent = parent;
+		   cur.left = parent;
+	   }
+	   parent.parent = cur;
+	   cur.parent = grandparent;
+	   if (grandparent != null) {
+		   if (grandparent.left == parent)
+			   grandparent.left = cur;
+		   else
+			   grandparent.right = cur;
+	   }
+	   parent.setSubtreeSize(parent.left.getSubtreeSize() + parent.right.getSubtreeSize() + 1);
+	   cur.setSubtreeSize(cur.left.getSubtreeSize() + cur.right.getSubtreeSize() + 1);
+   }
+   
+   /**
+    * private void replace(WAVLNode selected, WAVLNode substitute)
+    * 
+    * puts substitute (an inner node or the external node) in the place of selected under selected's parent
+    */
+	private void replace(WAVLNode selected, WAVLNode substitute){
+	   replaceChild(selected.parent, selected, substitute);
+   }
+
+   /**
+    * private void replaceChild(WAVLNode parent, WAVLNode child, WAVLNode substitute)
     *
-    * returns the difference between the rank of the node's children to know which rotation we should do  
+    * replaces the child pointer of parent (or the root if parent is null) that points to child with substitute
     */
-	private int balanceValue(WAVLNode cur) {
-	   if (cur.rank==-1) return 0;
-	   return (cur.left.rank - cur.right.rank);
+	private void replaceChild(WAVLNode parent, WAVLNode child, WAVLNode substitute){
+	   if (parent == null)
+		   this.root = substitute;
+	   else if (parent.left == child)
+		   parent.left = substitute;
+	   else
+		   parent.right = substitute;
+	   if (substitute.isInnerNode())
+		   substitute.parent = parent;
    }
 
-   /**
-    * private void updateSubTreeSize(WAVLNode cur)
-    * 
-    * updates the subTreeSize of all the parents of a current node
-    * after insertion to this node. 
-    */
-	private void updateSubTreeSize(WAVLNode cur){
-	   while (cur != null){ // until we reached the root 
-		   if (cur.rank != -1) 
-			   cur.setSubtreeSize(cur.getLeft().getSubtreeSize() + cur.getRight().getSubtreeSize() + 1);
-		   cur = cur.getParent();
-		   
-	   }
+   /**
+    * private WAVLNode unshare(WAVLNode node)
+    *
+    * returns node if it is writable, otherwise a copy of it that takes its place in the tree,
+    * also as the root, the min or the max. the parent of node must already be writable
+    */
+	private WAVLNode unshare(WAVLNode node) {
+	   WAVLNode copy = unshare(node, frozenBelow);
+	   if (copy != node) {
+		   if (copy.parent == null)
+			   root = copy;
+		   if (min == node)
+			   min = copy;
+		   if (max == node)
+			   max = copy;
+	   }
+	   return copy;
+   }
+
+   /**
+    * private static WAVLNode unshare(WAVLNode node, int frozenBelow)
+    *
+    * returns node if its epoch is not below frozenBelow (or it is the external node), otherwise a copy
+    * of it that takes its place under its parent and over its children. the snapshots that share node
+    * never read parent pointers, so only the parent pointers of the children are rewritten
+    */
+	private static WAVLNode unshare(WAVLNode node, int frozenBelow) {
+	   if (!node.isInnerNode() || node.epoch >= frozenBelow)
+		   return node;
+	   WAVLNode copy = new WAVLNode(node.key, node.value);
+	   copy.epoch = frozenBelow;
+	   copy.meta = node.meta;
+	   copy.parent = node.parent;
+	   copy.left = node.left;
+	   copy.right = node.right;
+	   if (copy.left.isInnerNode())
+		   copy.left.parent = copy;
+	   if (copy.right.isInnerNode())
+		   copy.right.parent = copy;
+	   if (copy.parent != null) {
+		   if (copy.parent.left == node)
+			   copy.parent.left = copy;
+		   else
+			   copy.parent.right = copy;
+	   }
+	   return copy;
+   }
+
+   /**
+    * private static WAVLNode unshareItem(WAVLNode node, int frozenBelow)
+    *
+    * returns node if it is writable, otherwise a new detached node with the same item,
+    * for a node whose links are all about to be rewritten by a join or a split
+    */
+	private static WAVLNode unshareItem(WAVLNode node, int frozenBelow) {
+	   if (node.epoch >= frozenBelow)
+		   return node;
+	   WAVLNode copy = new WAVLNode(node.key, node.value);
+	   copy.epoch = frozenBelow;
+	   return copy;
+   }
+
+   /**
+    * public static WAVLTree join(WAVLTree t1, int k, String i, WAVLTree t2)
+    *
+    * returns a tree of all the items of t1, the item (k, i) and all the items of t2, in O(log n).
+    * all the keys of t1 must be smaller than k and all the keys of t2 larger than k,
+    * otherwise IllegalArgumentException is thrown.
+    * the nodes of t1 and t2 move to the new tree, and both are left empty
+    */
+	public static WAVLTree join(WAVLTree t1, int k, String i, WAVLTree t2) {
+	   if (t1 == t2)
+		   throw new IllegalArgumentException("cannot join a tree with itself");
+	   if ((!t1.empty() && t1.max.key >= k) || (!t2.empty() && t2.min.key <= k))
+		   throw new IllegalArgumentException("the keys of t1 must be smaller than " + k + " and the keys of t2 larger");
+	   if ((long) t1.size() + t2.size() + 1 > WAVLNode.SIZE_MASK)
+		   throw new IllegalArgumentException("the joined tree is too large");
+	   t1.checkThawed();
+	   t2.checkThawed();
+	   WAVLNode middle = t1.newNode(k, i);
+	   WAVLTree tree = new WAVLTree(t1.poolCapacity);
+	   tree.frozenBelow = Math.max(t1.frozenBelow, t2.frozenBelow); // the nodes of both trees keep their snapshots
+	   tree.epochs = Epochs.merge(t1.epochs, t2.epochs);
+	   tree.setRoot(new Splicer(tree.frozenBelow).join(t1.root, t1.root.getRank(), middle, t2.root, t2.root.getRank()));
+	   t1.setRoot(EXTERNAL);
+	   t2.setRoot(EXTERNAL);
+	   return tree;
+   }
+
+   /**
+    * public Split split(int k)
+    *
+    * splits the tree by the key k in O(log n): the items with keys smaller than k move to one tree,
+    * the items with keys larger than k to another, and the item with key k (if any) is returned with them.
+    * this tree is left empty
+    */
+	public Split split(int k) {
+	   checkThawed();
+	   Splicer splicer = new Splicer(frozenBelow);
+	   splicer.split(root, root.getRank(), k);
+	   WAVLTree less = new WAVLTree(poolCapacity);
+	   WAVLTree greater = new WAVLTree(poolCapacity);
+	   less.frozenBelow = frozenBelow;
+	   greater.frozenBelow = frozenBelow;
+	   less.epochs = epochs; // both parts may share nodes with the snapshots of this tree
+	   greater.epochs = epochs;
+	   epochs = new Epochs();
+	   frozenBelow = 0;
+	   less.setRoot(splicer.less);
+	   greater.setRoot(splicer.greater);
+	   setRoot(EXTERNAL);
+	   return new Split(less, splicer.found, greater);
+   }
+
+   /**
+    * public int deleteRange(int lo, int hi)
+    *
+    * deletes the items with keys in [lo, hi] in O(log n): the range is cut out with two splits
+    * and the rest is joined back. the removed nodes are recycled into the pool until it is full,
+    * which costs O(1) per recycled node.
+    * returns the number of deleted items, 0 if lo > hi
+    */
+	public int deleteRange(int lo, int hi) {
+	   if (lo > hi || empty() || hi < min.key || lo > max.key)
+		   return 0;
+	   checkThawed();
+	   Splicer splicer = new Splicer(frozenBelow);
+	   splicer.split(root, root.getRank(), lo);
+	   WAVLNode less = splicer.less;
+	   int lessRank = splicer.lessRank;
+	   WAVLNode first = splicer.found;
+	   splicer.split(splicer.greater, splicer.greaterRank, hi);
+	   WAVLNode removed = splicer.less;
+	   WAVLNode last = splicer.found;
+	   int count = removed.getSubtreeSize() + (first != null ? 1 : 0) + (last != null ? 1 : 0);
+	   setRoot(splicer.join2(less, lessRank, splicer.greater, splicer.greaterRank));
+	   if (first != null)
+		   release(first);
+	   if (last != null)
+		   release(last);
+	   releaseSubTree(removed);
+	   return count;
+   }
+
+   /**
+    * private void releaseSubTree(WAVLNode node)
+    *
+    * puts the nodes of a detached sub-tree in the pool, stopping as soon as the pool is full.
+    * the sub-tree of a node that may belong to a snapshot is all old enough to belong to it, and is skipped
+    */
+	private void releaseSubTree(WAVLNode node) {
+	   if (!node.isInnerNode() || poolSize == poolCapacity || node.epoch < frozenBelow)
+		   return;
+	   WAVLNode left = node.left;
+	   WAVLNode right = node.right;
+	   release(node);
+	   releaseSubTree(left);
+	   releaseSubTree(right);
+   }
+
+   /**
+    * public static WAVLTree union(WAVLTree a, WAVLTree b, BinaryOperator<String> merge)
+    *
+    * returns a tree of the items of a and b, where the info of a key found in both trees is
+    * merge.apply(info in a, info in b). runs on the common fork-join pool.
+    * the nodes of a and b move to the new tree, and both are left empty
+    */
+	public static WAVLTree union(WAVLTree a, WAVLTree b, BinaryOperator<String> merge) {
+	   return union(a, b, merge, ForkJoinPool.commonPool());
+   }
+
+   /**
+    * public static WAVLTree union(WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool)
+    *
+    * like union(a, b, merge), running on pool
+    */
+	public static WAVLTree union(WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool) {
+	   if ((long) a.size() + b.size() > WAVLNode.SIZE_MASK)
+		   throw new IllegalArgumentException("the union is too large");
+	   return setOperation(SetTask.UNION, a, b, merge, pool);
+   }
+
+   /**
+    * public static WAVLTree intersection(WAVLTree a, WAVLTree b, BinaryOperator<String> merge)
+    *
+    * returns a tree of the keys found in both a and b, with the info merge.apply(info in a, info in b).
+    * runs on the common fork-join pool. a and b are left empty
+    */
+	public static WAVLTree intersection(WAVLTree a, WAVLTree b, BinaryOperator<String> merge) {
+	   return intersection(a, b, merge, ForkJoinPool.commonPool());
+   }
+
+   /**
+    * public static WAVLTree intersection(WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool)
+    *
+    * like intersection(a, b, merge), running on pool
+    */
+	public static WAVLTree intersection(WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool) {
+	   return setOperation(SetTask.INTERSECTION, a, b, merge, pool);
+   }
+
+   /**
+    * public static WAVLTree difference(WAVLTree a, WAVLTree b)
+    *
+    * returns a tree of the items of a whose keys are not in b.
+    * runs on the common fork-join pool. a and b are left empty
+    */
+	public static WAVLTree difference(WAVLTree a, WAVLTree b) {
+	   return difference(a, b, ForkJoinPool.commonPool());
+   }
+
+   /**
+    * public static WAVLTree difference(WAVLTree a, WAVLTree b, ForkJoinPool pool)
+    *
+    * like difference(a, b), running on pool
+    */
+	public static WAVLTree difference(WAVLTree a, WAVLTree b, ForkJoinPool pool) {
+	   return setOperation(SetTask.DIFFERENCE, a, b, null, pool);
+   }
+
+   /**
+    * private static WAVLTree setOperation(int operation, WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool)
+    *
+    * runs a set operation on the whole trees a and b, and empties them
+    */
+	private static WAVLTree setOperation(int operation, WAVLTree a, WAVLTree b, BinaryOperator<String> merge, ForkJoinPool pool) {
+	   if (a == b)
+		   throw new IllegalArgumentException("the trees must be different");
+	   a.checkThawed();
+	   b.checkThawed();
+	   int frozenBelow = Math.max(a.frozenBelow, b.frozenBelow);
+	   WAVLNode result = pool.invoke(new SetTask(operation, a.root, a.root.getRank(), b.root, b.root.getRank(), merge, frozenBelow));
+	   WAVLTree tree = new WAVLTree(a.poolCapacity);
+	   tree.frozenBelow = frozenBelow;
+	   tree.epochs = Epochs.merge(a.epochs, b.epochs);
+	   tree.setRoot(result);
+	   a.setRoot(EXTERNAL);
+	   b.setRoot(EXTERNAL);
+	   return tree;
+   }
+
+   /**
+    * private void setRoot(WAVLNode node)
+    *
+    * makes the detached sub-tree of node (or the external node) the whole tree, and finds its min and max
+    */
+	private void setRoot(WAVLNode node) {
+	   root = node;
+	   if (node.isInnerNode()) {
+		   node.parent = null;
+		   min = node.getMin();
+		   max = node.getMax();
+	   }
+	   else {
+		   min = EXTERNAL;
+		   max = EXTERNAL;
+	   }
+   }
+
+	/**
+	* public static class Split
+	*
+	* the result of split(k): the tree of the smaller keys, the tree of the larger keys
+	* and the item with key k if it was in the tree
+	*/
+	public static class Split {
+		  private final WAVLTree less;
+		  private final WAVLTree greater;
+		  private final boolean found;
+		  private final String info;
+
+		  private Split(WAVLTree less, WAVLNode found, WAVLTree greater) {
+			  this.less = less;
+			  this.greater = greater;
+			  this.found = (found != null);
+			  this.info = (found != null) ? found.value : null;
+		  }
+
+		  /**
+		   * public WAVLTree getLess()
+		   *
+		   * returns the tree of the items with keys smaller than k
+		   */
+		  public WAVLTree getLess() {
+			  return less;
+		  }
+
+		  /**
+		   * public WAVLTree getGreater()
+		   *
+		   * returns the tree of the items with keys larger than k
+		   */
+		  public WAVLTree getGreater() {
+			  return greater;
+		  }
+
+		  /**
+		   * public boolean containsKey()
+		   *
+		   * returns true if the tree had an item with key k
+		   */
+		  public boolean containsKey() {
+			  return found;
+		  }
+
+		  /**
+		   * public String getInfo()
+		   *
+		   * returns the info of the item with key k, or null if there was none
+		   */
+		  public String getInfo() {
+			  return info;
+		  }
+	}
+
+	/**
+	* public static class Snapshot
+	*
+	* a point-in-time view of a tree, returned by snapshot(). its nodes are never written again,
+	* and it never reads parent pointers, which the tree keeps rewriting, so it iterates with its own stack.
+	* closing it drops its root, so the old nodes can be reclaimed even if the handle is kept
+	*/
+	public static class Snapshot implements AutoCloseable {
+		  private WAVLNode root; // null once the snapshot is closed
+		  private final Epochs epochs; // told when the snapshot is closed
+
+		  private Snapshot(WAVLNode root, Epochs epochs) {
+			  this.root = root;
+			  this.epochs = epochs;
+		  }
+
+		  /**
+		   * public String search(int k)
+		   *
+		   * returns the info of key k when the snapshot was taken, or null if it did not exist
+		   */
+		  public String search(int k) {
+			  WAVLNode cur = root();
+			  while (cur.isInnerNode()) {
+				  if (k == cur.key)
+					  return cur.value;
+				  cur = (k < cur.key) ? cur.left : cur.right;
+			  }
+			  return null;
+		  }
+
+		  /**
+		   * public String select(int i)
+		   *
+		   * returns the info of the i'th smallest key, or "-1" if i is out of range, as WAVLTree.select
+		   */
+		  public String select(int i) {
+			  WAVLNode top = root();
+			  if (i <= 0 || i > top.getSubtreeSize())
+				  return "-1";
+			  return NodeSpliterator.nodeAt(top, i - 1).value;
+		  }
+
+		  /**
+		   * public int size()
+		   *
+		   * returns the number of items when the snapshot was taken
+		   */
+		  public int size() {
+			  return root().getSubtreeSize();
+		  }
+
+		  /**
+		   * public int[] keysToArray()
+		   *
+		   * returns a sorted array of the keys of the snapshot
+		   */
+		  public int[] keysToArray() {
+			  WAVLNode top = root();
+			  int[] keysArray = new int[top.getSubtreeSize()];
+			  fill(top, 0, keysArray, null);
+			  return keysArray;
+		  }
+
+		  /**
+		   * public String[] infoToArray()
+		   *
+		   * returns the infos of the snapshot sorted by their keys
+		   */
+		  public String[] infoToArray() {
+			  WAVLNode top = root();
+			  String[] infoArray = new String[top.getSubtreeSize()];
+			  fill(top, 0, null, infoArray);
+			  return infoArray;
+		  }
+
+		  /**
+		   * public void forEachInRange(int lo, int hi, IntObjConsumer<String> action)
+		   *
+		   * calls action with every item of the snapshot with a key in [lo, hi], in increasing order
+		   */
+		  public void forEachInRange(int lo, int hi, IntObjConsumer<String> action) {
+			  forEachInRangeWhile(lo, hi, (key, value) -> {
+				  action.accept(key, value);
+				  return true;
+			  });
+		  }
+
+		  /**
+		   * public boolean forEachInRangeWhile(int lo, int hi, IntObjPredicate<String> action)
+		   *
+		   * like forEachInRange, but stops as soon as action returns false.
+		   * returns true if the whole range was scanned
+		   */
+		  public boolean forEachInRangeWhile(int lo, int hi, IntObjPredicate<String> action) {
+			  WAVLNode top = root();
+			  if (lo > hi)
+				  return true;
+			  WAVLNode[] stack = new WAVLNode[top.getRank() + 2]; // a WAVL tree is at most rank + 1 levels high
+			  int depth = 0;
+			  for (WAVLNode cur = top; cur.isInnerNode(); ) { // push the path to the first key not smaller than lo
+				  if (cur.key >= lo) {
+					  stack[depth++] = cur;
+					  cur = cur.left;
+				  }
+				  else
+					  cur = cur.right;
+			  }
+			  while (depth > 0) {
+				  WAVLNode node = stack[--depth];
+				  if (node.key > hi)
+					  return true;
+				  if (!action.test(node.key, node.value))
+					  return false;
+				  for (WAVLNode cur = node.right; cur.isInnerNode(); cur = cur.left) // the successor is the minimum of the right sub-tree
+					  stack[depth++] = cur;
+			  }
+			  return true;
+		  }
+
+		  /**
+		   * public void close()
+		   *
+		   * releases the snapshot, any later read throws IllegalStateException.
+		   * once all the snapshots of a tree are closed, the tree stops copying nodes
+		   */
+		  public synchronized void close() {
+			  if (root == null)
+				  return;
+			  root = null;
+			  epochs.thaw();
+		  }
+
+		  private WAVLNode root() {
+			  if (root == null)
+				  throw new IllegalStateException("the snapshot is closed");
+			  return root;
+		  }
+
+		  /**
+		   * private static void fill(WAVLNode node, int offset, int[] keys, String[] infos)
+		   *
+		   * writes the keys (if keys is not null) or the infos of the sub-tree node in increasing order
+		   * from offset, placing every node by the size of its left sub-tree
+		   */
+		  private static void fill(WAVLNode node, int offset, int[] keys, String[] infos) {
+			  while (node.isInnerNode()) {
+				  int position = offset + node.left.getSubtreeSize();
+				  fill(node.left, offset, keys, infos);
+				  if (keys != null)
+					  keys[position] = node.key;
+				  else
+					  infos[position] = node.value;
+				  offset = position + 1;
+				  node = node.right;
+			  }
+		  }
+	}
+
+	/**
+	* private static class Epochs
+	*
+	* the snapshot bookkeeping of a tree, shared with the trees split from it. it gives the epochs
+	* of new snapshots and counts the open ones. a tree joined from trees with open snapshots also
+	* waits for their bookkeeping in joined. once none of them has an open snapshot, no node of the
+	* tree can belong to one. the epochs of unrelated trees are never compared, so each tree has
+	* Integer.MAX_VALUE of them
+	*/
+	private static class Epochs {
+		  private int last; // the epoch of the latest snapshot, the nodes are all of this epoch or older
+		  private int open; // the number of open snapshots
+		  private volatile boolean thawed = true; // true while open is 0, read by the writers without locking
+		  private volatile Epochs[] joined; // the bookkeeping of joined trees that had open snapshots, null if none
+
+		  /**
+		   * synchronized int freeze()
+		   *
+		   * counts a new snapshot and returns its epoch, or 0 if the epochs ran out
+		   */
+		  synchronized int freeze() {
+			  if (last == Integer.MAX_VALUE)
+				  return 0;
+			  open++;
+			  thawed = false;
+			  return ++last;
+		  }
+
+		  /**
+		   * synchronized void thaw()
+		   *
+		   * counts a closed snapshot
+		   */
+		  synchronized void thaw() {
+			  if (--open == 0)
+				  thawed = true;
+		  }
+
+		  /**
+		   * boolean isThawed()
+		   *
+		   * returns true if neither these trees nor the trees joined into them have an open snapshot
+		   */
+		  boolean isThawed() {
+			  if (!thawed)
+				  return false;
+			  Epochs[] waiting = joined;
+			  if (waiting != null) {
+				  for (Epochs other : waiting) {
+					  if (!other.thawed)
+						  return false;
+				  }
+				  joined = null; // a later snapshot of those trees cannot hold nodes that already moved here
+			  }
+			  return true;
+		  }
+
+		  /**
+		   * static Epochs merge(Epochs a, Epochs b)
+		   *
+		   * returns the bookkeeping of a tree joined from trees with the bookkeeping a and b.
+		   * its epochs continue after both, and it waits for those of a and b (and of the trees
+		   * joined into them) that have open snapshots. the list stays flat, so checking it never recurses
+		   */
+		  static Epochs merge(Epochs a, Epochs b) {
+			  Epochs merged = new Epochs();
+			  ArrayList<Epochs> waiting = new ArrayList<>();
+			  for (Epochs e : new Epochs[] {a, b}) {
+				  synchronized (e) {
+					  merged.last = Math.max(merged.last, e.last);
+					  if (!e.thawed)
+						  waiting.add(e);
+				  }
+				  Epochs[] inner = e.joined;
+				  if (inner != null) {
+					  for (Epochs other : inner) {
+						  if (!other.thawed && !waiting.contains(other))
+							  waiting.add(other);
+					  }
+				  }
+			  }
+			  if (!waiting.isEmpty())
+				  merged.joined = waiting.toArray(new Epochs[0]);
+			  return merged;
+		  }
+	}
+
+	/**
+	* private static class SetTask
+	*
+	* a set operation on two detached sub-trees, by the divide and conquer algorithms of
+	* Blelloch, Ferizovic & Sun ('16): one tree is split by the root key of the other, the two sides
+	* are solved in parallel and joined back. the rank of the result is left in resultRank
+	*/
+	private static class SetTask extends RecursiveTask<WAVLNode> {
+		  private static final long serialVersionUID = 1L;
+		  static final int UNION = 0;
+		  static final int INTERSECTION = 1;
+		  static final int DIFFERENCE = 2;
+
+		  private final int operation;
+		  private final WAVLNode a;
+		  private final int aRank;
+		  private final WAVLNode b;
+		  private final int bRank;
+		  private final BinaryOperator<String> merge;
+		  private final int frozenBelow;
+		  private int resultRank;
+
+		  SetTask(int operation, WAVLNode a, int aRank, WAVLNode b, int bRank, BinaryOperator<String> merge, int frozenBelow) {
+			  this.operation = operation;
+			  this.a = a;
+			  this.aRank = aRank;
+			  this.b = b;
+			  this.bRank = bRank;
+			  this.merge = merge;
+			  this.frozenBelow = frozenBelow;
+		  }
+
+		  protected WAVLNode compute() {
+			  if (!a.isInnerNode() || !b.isInnerNode()) { // one of the trees is empty
+				  if (operation == INTERSECTION) {
+					  resultRank = -1;
+					  return EXTERNAL;
+				  }
+				  boolean keepA = (operation == DIFFERENCE) || a.isInnerNode();
+				  resultRank = keepA ? aRank : bRank;
+				  return keepA ? a : b;
+			  }
+			  Splicer splicer = new Splicer(frozenBelow);
+			  // the tree whose root is kept, and the tree that is split by that root's key
+			  WAVLNode pivot = (operation == DIFFERENCE) ? b : a;
+			  int pivotRank = (operation == DIFFERENCE) ? bRank : aRank;
+			  WAVLNode pivotLeft = pivot.left;
+			  WAVLNode pivotRight = pivot.right;
+			  if (pivotLeft.isInnerNode())
+				  pivotLeft.parent = null;
+			  if (pivotRight.isInnerNode())
+				  pivotRight.parent = null;
+			  if (operation == DIFFERENCE)
+				  splicer.split(a, aRank, pivot.key);
+			  else
+				  splicer.split(b, bRank, pivot.key);
+			  WAVLNode found = splicer.found;
+			  int pivotLeftRank = pivotRank - pivot.diff(true);
+			  int pivotRightRank = pivotRank - pivot.diff(false);
+			  pivot = unshareItem(pivot, frozenBelow); // its info may be merged before it is joined
+			  SetTask leftTask;
+			  SetTask rightTask;
+			  if (operation == DIFFERENCE) {
+				  leftTask = new SetTask(operation, splicer.less, splicer.lessRank, pivotLeft, pivotLeftRank, merge, frozenBelow);
+				  rightTask = new SetTask(operation, splicer.greater, splicer.greaterRank, pivotRight, pivotRightRank, merge, frozenBelow);
+			  }
+			  else {
+				  leftTask = new SetTask(operation, pivotLeft, pivotLeftRank, splicer.less, splicer.lessRank, merge, frozenBelow);
+				  rightTask = new SetTask(operation, pivotRight, pivotRightRank, splicer.greater, splicer.greaterRank, merge, frozenBelow);
+			  }
+			  WAVLNode left;
+			  WAVLNode right;
+			  if (a.getSubtreeSize() + b.getSubtreeSize() > PARALLEL_THRESHOLD) {
+				  leftTask.fork();
+				  right = rightTask.compute();
+				  left = leftTask.join();
+			  }
+			  else {
+				  left = leftTask.compute();
+				  right = rightTask.compute();
+			  }
+			  WAVLNode result;
+			  if (operation == UNION) {
+				  if (found != null)
+					  pivot.value = merge.apply(pivot.value, found.value);
+				  result = splicer.join(left, leftTask.resultRank, pivot, right, rightTask.resultRank);
+			  }
+			  else if (operation == INTERSECTION && found != null) {
+				  pivot.value = merge.apply(pivot.value, found.value);
+				  result = splicer.join(left, leftTask.resultRank, pivot, right, rightTask.resultRank);
+			  }
+			  else { // the pivot key is dropped
+				  result = splicer.join2(left, leftTask.resultRank, right, rightTask.resultRank);
+			  }
+			  resultRank = splicer.rank;
+			  return result;
+		  }
+	}
+
+	/**
+	* private static class Splicer
+	*
+	* joins and splits detached sub-trees, whose roots have null parents.
+	* ranks are not stored in the nodes, so the rank of every sub-tree is passed in and the rank
+	* of every result is left in a field, which keeps each join and split in O(log n).
+	* a splicer counts the rebalancing operations of its joins, and must be used by one thread at a time.
+	* nodes with an epoch below frozenBelow may belong to a snapshot, and are copied before they are written
+	*/
+	private static class Splicer {
+		  private final int frozenBelow;
+		  private int rank; // the rank of the tree returned by the last join
+		  private int rebalances; // the number of rebalancing operations of all the joins
+		  private WAVLNode less; // the tree of the smaller keys of the last split
+		  private int lessRank;
+		  private WAVLNode found; // the detached node with the split key, or null
+		  private WAVLNode greater; // the tree of the larger keys of the last split
+		  private int greaterRank;
+
+		  Splicer(int frozenBelow) {
+			  this.frozenBelow = frozenBelow;
+		  }
+
+		  /**
+		   * WAVLNode join(WAVLNode left, int leftRank, WAVLNode x, WAVLNode right, int rightRank)
+		   *
+		   * returns the root of a tree of the sub-tree left, the single node x and the sub-tree right,
+		   * where all the keys of left are smaller than x's key and all the keys of right are larger.
+		   * x replaces the first node on the inner spine of the taller tree whose rank is close to
+		   * the rank of the shorter tree, and the tree is rebalanced from there like after an insertion
+		   */
+		  WAVLNode join(WAVLNode left, int leftRank, WAVLNode x, WAVLNode right, int rightRank) {
+			  x = unshareItem(x, frozenBelow);
+			  if (Math.abs(leftRank - rightRank) <= 1) { // x becomes the root
+				  rank = Math.max(leftRank, rightRank) + 1;
+				  attach(x, left, right);
+				  x.setDiffs(rank - leftRank, rank - rightRank);
+				  x.parent = null;
+				  return x;
+			  }
+			  boolean leftTaller = leftRank > rightRank;
+			  WAVLNode tall = unshare(leftTaller ? left : right, frozenBelow);
+			  WAVLNode low = leftTaller ? right : left;
+			  int tallRank = leftTaller ? leftRank : rightRank;
+			  int lowRank = leftTaller ? rightRank : leftRank;
+			  boolean spineLeft = !leftTaller; // the side of the spine of tall that faces low
+			  int farRank = tallRank - tall.diff(!spineLeft); // the rank of the child of tall the join never touches
+			  WAVLNode parent = null;
+			  WAVLNode cur = tall;
+			  int curRank = tallRank;
+			  while (curRank > lowRank + 1) { // go down the spine
+				  parent = cur;
+				  curRank -= cur.diff(spineLeft);
+				  cur = cur.child(spineLeft);
+				  if (curRank > lowRank + 1) // cur is on the part of the spine whose sizes and links are written
+					  cur = unshare(cur, frozenBelow);
+			  }
+			  for (WAVLNode a = parent; a != null; a = a.parent)
+				  a.setSubtreeSize(a.getSubtreeSize() + low.getSubtreeSize() + 1);
+			  if (leftTaller)
+				  attach(x, cur, low);
+			  else
+				  attach(x, low, cur);
+			  x.setDiff(!spineLeft, 1); // x is one rank above cur
+			  x.setDiff(spineLeft, curRank + 1 - lowRank);
+			  int oldDiff = parent.diff(spineLeft);
+			  if (spineLeft)
+				  parent.left = x;
+			  else
+				  parent.right = x;
+			  x.parent = parent;
+			  if (oldDiff == 2)
+				  parent.setDiff(spineLeft, 1);
+			  else
+				  rebalances += balanceZeroChild(x, frozenBelow); // x is a 0-child
+			  WAVLNode top = tall;
+			  while (top.parent != null)
+				  top = top.parent;
+			  rank = farRank + tall.diff(!spineLeft);
+			  if (top != tall)
+				  rank += top.diff(top.left == tall);
+			  return top;
+		  }
+
+		  /**
+		   * void split(WAVLNode node, int nodeRank, int k)
+		   *
+		   * splits the detached sub-tree of node by the key k into less, found and greater.
+		   * going down the search path, every node on it is joined with its sub-tree on the far side of k
+		   */
+		  void split(WAVLNode node, int nodeRank, int k) {
+			  if (!node.isInnerNode()) {
+				  less = EXTERNAL;
+				  lessRank = -1;
+				  found = null;
+				  greater = EXTERNAL;
+				  greaterRank = -1;
+				  return;
+			  }
+			  WAVLNode left = node.left;
+			  WAVLNode right = node.right;
+			  int leftRank = nodeRank - node.diff(true);
+			  int rightRank = nodeRank - node.diff(false);
+			  if (left.isInnerNode())
+				  left.parent = null;
+			  if (right.isInnerNode())
+				  right.parent = null;
+			  node = unshareItem(node, frozenBelow);
+			  if (k == node.key) {
+				  less = left;
+				  lessRank = leftRank;
+				  greater = right;
+				  greaterRank = rightRank;
+				  attach(node, EXTERNAL, EXTERNAL);
+				  node.setDiffs(1, 1);
+				  node.parent = null;
+				  found = node;
+			  }
+			  else if (k < node.key) {
+				  split(left, leftRank, k);
+				  greater = join(greater, greaterRank, node, right, rightRank);
+				  greaterRank = rank;
+			  }
+			  else {
+				  split(right, rightRank, k);
+				  less = join(left, leftRank, node, less, lessRank);
+				  lessRank = rank;
+			  }
+		  }
+
+		  /**
+		   * WAVLNode join2(WAVLNode left, int leftRank, WAVLNode right, int rightRank)
+		   *
+		   * returns the root of a tree of the sub-trees left and right, where all the keys of left
+		   * are smaller than the keys of right. the maximum of left is split off and used as the middle node
+		   */
+		  WAVLNode join2(WAVLNode left, int leftRank, WAVLNode right, int rightRank) {
+			  if (!left.isInnerNode()) {
+				  rank = rightRank;
+				  return right;
+			  }
+			  split(left, leftRank, left.getMax().key);
+			  return join(less, lessRank, found, right, rightRank);
+		  }
+
+		  /**
+		   * static void attach(WAVLNode node, WAVLNode left, WAVLNode right)
+		   *
+		   * hangs left and right under node and sets its size
+		   */
+		  static void attach(WAVLNode node, WAVLNode left, WAVLNode right) {
+			  node.left = left;
+			  node.right = right;
+			  if (left.isInnerNode())
+				  left.parent = node;
+			  if (right.isInnerNode())
+				  right.parent = node;
+			  node.setSubtreeSize(left.getSubtreeSize() + right.getSubtreeSize() + 1);
+		  }
 	}
-	
-   /**
-    * public int delete(int k)
-   *
-   * deletes an item with key k from the binary tree, if it is there;
-   * the tree must remain valid (keep its invariants).
-   * returns the number of rebalancing operations, or 0 if no rebalancing operations were needed.
-   * returns -1 if an item with key k was not found in the tree.
-   */
-	public int delete(int k)	 {
-   	   int rebalancing_counter = 0;
-       WAVLNode selected = rec_search(k,root); // finding the node we want to delete
-       if (selected == null)
-    	   return -1;
-       if (min.equals(selected))
-    	   min = successor(selected);
-       if (max.equals(selected))
-    	   max = predecessor(selected);
-       WAVLNode substitute = remove_from_tree(selected); //finds the substitute node 
-       Boolean tree_rebalanced = false; // rebalancing starts here 
-       WAVLNode cur = substitute;
-       WAVLNode parent = cur.parent;
-       if (parent == null) { //if we delete the root
-    	   if (cur.isInnerNode()) { 
-    		   cur.updateRank();
-    		   rebalancing_counter++;
-    	   }
-    	   return rebalancing_counter;
-       }
-       while (!tree_rebalanced) {
-    	   if (cur.equals(root)) 
-    		   return rebalancing_counter;
-    	   WAVLNode brother = cur.getBrother();
-           int balancing_factor_cur_parent = parent.getRank() - cur.getRank();
-           int balancing_factor_bro_parent = parent.getRank() - brother.getRank();
-           int orientation = 0; // For symmetry reasons
-    	   if (cur.getParent().getLeft().equals(brother))
-    		   orientation = 1;
-    	   if (parent.isLeaf() && parent.getRank() == 1) {  // CASE LEAF
-    		   parent.rank = parent.rank - 1;
-    		   cur = parent;
-    		   parent = parent.parent;
-    		   brother = cur.getBrother();
-    		   rebalancing_counter++;
-    	   }
-    	   else if (balancing_factor_cur_parent == 3) {
-        	   if (balancing_factor_bro_parent	== 2){  // CASE 1
-        		   parent.rank = parent.rank - 1;
-        		   cur = parent;
-        		   parent = parent.parent;
-        		   rebalancing_counter++;
-        		   if (parent == null)
-        			   return rebalancing_counter;
-        		   brother = cur.getBrother();
-        	   }
-        	   else if (balancing_factor_bro_parent == 1){ // CASE 2
-        		   int balancing_factor_bro_left_child = brother.getRank() - brother.getLeft().getRank();
-        		   int balancing_factor_bro_right_child = brother.getRank() - brother.getRight().getRank();
-        		   if (balancing_factor_bro_left_child == 2 && balancing_factor_bro_right_child == 2){ // CASE 2
-        			   parent.rank = parent.rank - 1;
-        			   brother.rank = brother.rank - 1;
-            		   cur = parent;
-            		   parent = parent.parent;
-            		   rebalancing_counter += 2;
-            		   if (parent != null) 
-            			   brother = parent.getBrother();
-        		   }
-        		   else if (orientation == 0) { // CASE 3&4 : LEFT TO RIGHT
-        			   if ((balancing_factor_bro_left_child == 1 || balancing_factor_bro_left_child == 2) 
-        					   && balancing_factor_bro_right_child == 1){ // CASE 3
-        				   rotate(0, cur, parent, brother);
-        				   tree_rebalanced = true; 
-        				   rebalancing_counter += 3;
-        				   parent.updateRank();
-        				   brother.updateRank();
-        				   parent.updateRank();
-        			   }
-        			   else if (balancing_factor_bro_left_child == 1
-        					   && balancing_factor_bro_right_child == 2){ // CASE 4
-        				   rotate(1, brother.getRight(), brother, brother.getLeft());
-        				   rotate(0, cur, parent, cur.getBrother());
-        				   parent.rank = parent.rank - 2;
-        				   brother.updateRank();
-        				   parent.getParent().rank = parent.getParent().rank + 2;
-        				   tree_rebalanced = true;
-        				   rebalancing_counter += 5;
-        			   }
-        		   }
-        		   else {  // CASE 3&4 : RIGHT TO LEFT
-        			   if ((balancing_factor_bro_right_child == 1 || balancing_factor_bro_right_child == 2) 
-        					   && balancing_factor_bro_left_child == 1) { // CASE 3
-        				   rotate(1, cur, parent, brother);
-	    				   rebalancing_counter += 3;
-	    				   tree_rebalanced = true; 
-	    				   parent.updateRank();
-	    				   brother.updateRank();
-	    				   parent.updateRank();
-        			   }
-        			   else if (balancing_factor_bro_right_child == 1
-        					   && balancing_factor_bro_left_child == 2){  // CASE 4 
-        				   rotate(0, brother.getLeft(), brother, brother.getRight());
-	    				   rotate(1, cur, parent, cur.getBrother());
-	    				   parent.rank = parent.rank - 2;
-	    				   brother.updateRank();
-	    				   parent.getParent().rank = parent.getParent().rank + 2;
-	    				   rebalancing_counter += 5;
-	    				   tree_rebalanced = true; 
-        			   }
-        		   } 
-        	   }		   
-    	   } 
-    	   else  tree_rebalanced = true;
-    	   if (cur != null && cur.isInnerNode())
-    		   cur.sub_tree_size = cur.getLeft().getSubtreeSize() + cur.getRight().getSubtreeSize() + 1;
-    	   if (brother != null && brother.isInnerNode())
-        	   brother.sub_tree_size = brother.getRight().getSubtreeSize() + brother.getLeft().getSubtreeSize() + 1;
-    	   if (parent != null && parent.isInnerNode())
-    		   parent.sub_tree_size = parent.getLeft().getSubtreeSize() + parent.getRight().getSubtreeSize() + 1;
-       }
-       return rebalancing_counter;
-   }
-   
-   /**
-    * private WAVLNode remove_from_tree(WAVLNode selected)
-    * 
-    * finds the substitute node of selected in the tree, deletes it and update the substitute's pointers
-    */
-	private WAVLNode remove_from_tree(WAVLNode selected){
-	   WAVLNode substitute;
-	   if (selected.isLeaf())  
-		   substitute = new WAVLNode(); // if the node we delete is a leaf
-       else if ((selected.getLeft().isInnerNode() && !selected.getRight().isInnerNode())) // if the node we delete is left-unary node
-    	   substitute = selected.getLeft();
-       else if ((selected.getRight().isInnerNode() && !selected.getLeft().isInnerNode())) // if the node we delete is right-unary node
-    	   substitute = selected.getRight();
-       else { // if the node we delete is inner non-unary node
-    	   WAVLNode successor = successor(selected);
-    	   WAVLNode next;
-    	   if (successor != null && successor.isInnerNode()){
-    		   next = remove_from_tree(successor);
-    		   substitute = successor;
-    	   }
-    	   else {
-    		   WAVLNode predecessor = predecessor(selected);
-    		   next = remove_from_tree(predecessor); // removes the substitute node from our tree
-    		   substitute = predecessor;
-    	   }
-    	   replace(selected, substitute); //replace and update the substitute's pointers
-    	   substitute.setRight(selected.getRight());
-    	   substitute.getRight().setParent(substitute);
-    	   substitute.setLeft(selected.getLeft());
-    	   substitute.getLeft().setParent(substitute);
-    	   substitute.rank = selected.getRank();
-    	   substitute.setSubtreeSize(selected.getSubtreeSize());
-    	   return next; 
-       }
-	   replace(selected, substitute);
-	   updateSubTreeSize(substitute);
-	   return substitute;
-   }
-   
-   /**
-    * private void rotate(int orientation, WAVLNode cur, WAVLNode parent, WAVLNode brother)
-    * 
-    * making a rotation in the tree, given the orientation (left/right/left-right/right-left) and the nodes we'de like to rotate
-    */
-	private void rotate(int orientation, WAVLNode cur, WAVLNode parent, WAVLNode brother){
-	   WAVLNode grandparent = parent.getParent();
-	   if (orientation == 0) {
-		   WAVLNode bro_left = brother.getLeft();
-		   WAVLNode bro_right = brother.getRight();
-		   if (bro_left == null)
-			   bro_left = new WAVLNode();
-		   if (bro_right == null)
-			   bro_right = new WAVLNode();
-		   parent.setRight(bro_left);
-		   parent.getRight().setParent(parent);
-		   brother.setLeft(parent);
-		   brother.getLeft().setParent(brother);
-		   brother.setRight(bro_right);
-		   bro_right.setParent(brother);
-	   }
-	   else {
-		   WAVLNode bro_left = brother.getLeft();
-		   WAVLNode bro_right = brother.getRight();
-		   if (bro_left == null)
-			   bro_left = new WAVLNode();
-		   if (bro_right == null)
-			   bro_right = new WAVLNode();
-		   parent.setLeft(bro_right);
-		   parent.getLeft().setParent(parent);
-		   brother.setRight(parent);
-		   brother.getRight().setParent(brother);
-		   brother.setLeft(bro_left);
-		   bro_left.setParent(brother);
-	   }
-	   if (grandparent != null){
-		   if (grandparent.getRight().equals(parent))
-			   grandparent.setRight(brother);
-		   else
-			   grandparent.setLeft(brother);
-	   }
-	   else
-	   {
-		   root = brother;
-	   }
-	   brother.setParent(grandparent);	   
-	   parent.setSubtreeSize(parent.getLeft().getSubtreeSize() + parent.getRight().getSubtreeSize() + 1);
-	   brother.setSubtreeSize(brother.getLeft().getSubtreeSize() + brother.getRight().getSubtreeSize() + 1);
-	   
-		   
-   }
-   
-   /**
-    * private void replace(WAVLNode selected, WAVLNode substitute)
-    * 
-    * updates the pointers of the substitute node to be the ones of the selected node so id would replace it
-    */
-	private void replace(WAVLNode selected, WAVLNode substitute){
-	   
-	   if (!selected.equals(root)){
-		   WAVLNode selected_parent = selected.getParent();
-		   if (selected_parent.getLeft() == selected)
-			   selected.parent.setLeft(substitute);
-		   else
-			   selected_parent.setRight(substitute);
-		   substitute.setParent(selected_parent);
-	   }
-	   else 
-	   {
-		   if (!substitute.equals(selected.getLeft()))
-		   {
-			   substitute.setLeft(selected.getLeft());
-			   substitute.getLeft().setParent(substitute);
-		   }
-		   if (!substitute.equals(selected.getRight()))
-		   {
-			   substitute.setRight(selected.getRight());
-			   substitute.getRight().setParent(substitute);
-		   }
-		   substitute.setParent(null);
-		   this.root = substitute;
-	   }
-	   
-	   
-	   
-   }
 
    /**
     * public String min()
@@ -489,11 +1844,9 @@ public class WAVLTree {
 	public int[] keysToArray() {
 	   int size = root.getSubtreeSize();
 	   int [] keysArray = new int[size]; // create a new array of the tree size
-	   WAVLNode node = min;
-	   for (int i = 0; i < size; i++)  {
-		   keysArray[i] = node.getKey();
-		   node = successor(node); // add the elements to the array in increasing order
-	   }
+	   Cursor cursor = cursor();
+	   for (int i = 0; i < size; i++)
+		   keysArray[i] = cursor.nextInt(); // add the elements to the array in increasing order
 	   return keysArray;  
    }
 
@@ -508,14 +1861,159 @@ public class WAVLTree {
    {
 	   int size = root.getSubtreeSize();
 	   String [] keysArray = new String[size]; // create a new array of the tree size
-	   WAVLNode node = min;
+	   Cursor cursor = cursor();
 	   for (int i = 0; i < size; i++) {
-		   keysArray[i] = node.getValue();
-		   node = successor(node); // add the value of the element to the array in increasing order
+		   cursor.nextInt();
+		   keysArray[i] = cursor.value(); // add the value of the element to the array in increasing order
 	   }
 	   return keysArray; 
    }
 
+   /**
+    * public int[] parallelKeysToArray()
+    *
+    * returns the same array as keysToArray, filled on the common fork-join pool.
+    * the offset of every sub-tree in the array is known from the sub-tree sizes,
+    * so large sub-trees are written independently
+    */
+	public int[] parallelKeysToArray() {
+	   int[] keysArray = new int[size()];
+	   if (keysArray.length > 0)
+		   ForkJoinPool.commonPool().invoke(new ExportTask(root, 0, keysArray, null));
+	   return keysArray;
+   }
+
+   /**
+    * public String[] parallelInfoToArray()
+    *
+    * returns the same array as infoToArray, filled on the common fork-join pool
+    */
+	public String[] parallelInfoToArray() {
+	   String[] infoArray = new String[size()];
+	   if (infoArray.length > 0)
+		   ForkJoinPool.commonPool().invoke(new ExportTask(root, 0, null, infoArray));
+	   return infoArray;
+   }
+
+   /**
+    * public Cursor cursor()
+    *
+    * Returns a cursor over the keys of the tree in increasing order
+    */
+	public Cursor cursor() {
+	   return new Cursor(min.isInnerNode() ? min : null, true);
+   }
+
+   /**
+    * public Cursor descendingCursor()
+    *
+    * Returns a cursor over the keys of the tree in decreasing order
+    */
+	public Cursor descendingCursor() {
+	   return new Cursor(max.isInnerNode() ? max : null, false);
+   }
+
+   /**
+    * public void forEachInRange(int lo, int hi, IntObjConsumer<String> action)
+    *
+    * calls action with the key and info of every item with a key in [lo, hi], in increasing order.
+    * the first key is found by a single descent, and the scan then costs O(1) amortized per item,
+    * so it takes O(log n + m) for m items and builds no arrays
+    */
+	public void forEachInRange(int lo, int hi, IntObjConsumer<String> action) {
+	   if (lo > hi)
+		   return;
+	   for (WAVLNode cur = ceilingEntry(lo); cur != null && cur.key <= hi; cur = step(cur, true))
+		   action.accept(cur.key, cur.value);
+   }
+
+   /**
+    * public boolean forEachInRangeWhile(int lo, int hi, IntObjPredicate<String> action)
+    *
+    * like forEachInRange, but the scan stops as soon as action returns false.
+    * returns true if the whole range was scanned, false if action stopped it
+    */
+	public boolean forEachInRangeWhile(int lo, int hi, IntObjPredicate<String> action) {
+	   if (lo > hi)
+		   return true;
+	   for (WAVLNode cur = ceilingEntry(lo); cur != null && cur.key <= hi; cur = step(cur, true))
+		   if (!action.test(cur.key, cur.value))
+			   return false;
+	   return true;
+   }
+
+   /**
+    * public IntStream keyStream()
+    *
+    * returns a stream of the keys in increasing order, backed by the spliterator of entryStream()
+    */
+	public IntStream keyStream() {
+	   return entryStream().mapToInt(WAVLNode::getKey);
+   }
+
+   /**
+    * public Stream<WAVLNode> entryStream()
+    *
+    * returns a stream of the nodes of the tree in increasing key order.
+    * the stream is SIZED and SUBSIZED, and splits into exact halves by index using the sub-tree sizes,
+    * so parallel() streams divide the work evenly. the tree must not be modified while the stream is in use
+    */
+	public Stream<WAVLNode> entryStream() {
+	   return StreamSupport.stream(new NodeSpliterator(root, null, 0, size()), false);
+   }
+
+   /**
+    * public Snapshot snapshot()
+    *
+    * returns a read-only view of the tree as it is now, in O(1). the tree stays writable: from now on
+    * a node that is older than the snapshot is copied the first time it would be written, so the
+    * snapshot keeps seeing the old node. a snapshot may be read by other threads while this tree
+    * is written, once it was handed to them safely. the old nodes are garbage collected when they
+    * are neither in the tree nor in an open snapshot, and once all the snapshots are closed
+    * the tree stops copying nodes
+    */
+	public Snapshot snapshot() {
+	   int epoch = epochs.freeze();
+	   if (epoch == 0) { // the epochs of the tree ran out, so it moves to new nodes and starts over
+		   rebase();
+		   epoch = epochs.freeze();
+	   }
+	   frozenBelow = epoch;
+	   return new Snapshot(root, epochs);
+   }
+
+   /**
+    * private void rebase()
+    *
+    * replaces every node of the tree by a copy of epoch 0, in O(n), and restarts the epochs from 0.
+    * the old nodes are left as they are to the open snapshots and to the trees split from this one.
+    * it runs once per Integer.MAX_VALUE snapshots
+    */
+	private void rebase() {
+	   setRoot(copySubTree(root));
+	   epochs = new Epochs();
+	   frozenBelow = 0;
+   }
+
+   /**
+    * private static WAVLNode copySubTree(WAVLNode node)
+    *
+    * returns a detached copy of the sub-tree of node made of new nodes of epoch 0
+    */
+	private static WAVLNode copySubTree(WAVLNode node) {
+	   if (!node.isInnerNode())
+		   return node;
+	   WAVLNode copy = new WAVLNode(node.key, node.value);
+	   copy.meta = node.meta;
+	   copy.left = copySubTree(node.left);
+	   copy.right = copySubTree(node.right);
+	   if (copy.left.isInnerNode())
+		   copy.left.parent = copy;
+	   if (copy.right.isInnerNode())
+		   copy.right.parent = copy;
+	   return copy;
+   }
+
    /**
     * public int size()
     *
@@ -552,11 +2050,11 @@ public class WAVLTree {
 	}
 	
 	private String recSelect(int i, WAVLNode cur) {
-	   	if (i > root.sub_tree_size || i <= 0 || this.empty()) // the index is out of bounds
+	   	if (i > root.getSubtreeSize() || i <= 0 || this.empty()) // the index is out of bounds
 	   		return "-1";
 		if (cur.isLeaf())
 			return cur.value;
-	   	int leftSize = cur.left.sub_tree_size;
+	   	int leftSize = cur.left.getSubtreeSize();
 		if (i == leftSize + 1) // case A - i is the root index
 			return cur.value;
 		else if (i < leftSize + 1) // case B - i is smaller then the root index, then we recSelect in the sub-left tree
@@ -565,6 +2063,60 @@ public class WAVLTree {
 			return recSelect(i-leftSize-1, cur.right);   
    }
    
+   /**
+    * public WAVLNode selectEntry(int i)
+    *
+    * returns the node of the i'th smallest key in O(log n), or null if i is out of range
+    */
+	public WAVLNode selectEntry(int i) {
+	   if (i <= 0 || i > size())
+		   return null;
+	   return NodeSpliterator.nodeAt(root, i - 1);
+   }
+
+   /**
+    * public int rank(int k)
+    *
+    * returns the number of keys smaller than or equal to k, in O(log n) from the sub-tree sizes.
+    * the inverse of select: rank(k) == i for the i'th smallest key k
+    */
+	public int rank(int k) {
+	   return countBelow(k, true);
+   }
+
+   /**
+    * public int countRange(int lo, int hi)
+    *
+    * returns the number of keys in [lo, hi] in O(log n), 0 if lo > hi
+    */
+	public int countRange(int lo, int hi) {
+	   if (lo > hi)
+		   return 0;
+	   return countBelow(hi, true) - countBelow(lo, false);
+   }
+
+   /**
+    * private int countBelow(int k, boolean inclusive)
+    *
+    * descends from the root towards k, adding up the sizes of the left sub-trees that are passed.
+    * returns the number of keys smaller than k, plus one if inclusive and k is in the tree
+    */
+	private int countBelow(int k, boolean inclusive) {
+	   int count = 0;
+	   WAVLNode cur = root;
+	   while (cur.isInnerNode()) {
+		   if (k < cur.key || (k == cur.key && !inclusive))
+			   cur = cur.left;
+		   else { // cur and its left sub-tree are counted
+			   count += cur.left.getSubtreeSize() + 1;
+			   if (k == cur.key)
+				   return count;
+			   cur = cur.right;
+		   }
+	   }
+	   return count;
+   }
+
    /**
     * private WAVLNode successor (WAVLNode n)
     * 
@@ -572,16 +2124,8 @@ public class WAVLTree {
     * 
     */
 	private WAVLNode successor(WAVLNode n) {
-	   if (max.equals(n) || root == null | root.getSubtreeSize() <= 1 || !n.isInnerNode())
-		   return new WAVLNode();
-	   if (n.getRight().isInnerNode())
-		   return n.getRight().getMin(); //if n has right child, we go right to the end
-	   WAVLNode cur = n.getParent();
-	   while (cur != null && cur.isInnerNode() && n.equals(cur.getRight())) { // if not, go up to the successor
-		   n = cur;
-		   cur = n.getParent();
-	   }
-	   return cur; 
+	   WAVLNode next = step(n, true);
+	   return (next == null) ? EXTERNAL : next;
    }
    
    /**
@@ -590,48 +2134,202 @@ public class WAVLTree {
     * returns the predecessor of the WAVLNode n
     */
 	private WAVLNode predecessor(WAVLNode n) {
-	   if (min.equals(n) || root == null ||  root.getSubtreeSize() <= 1)
-		   return new WAVLNode();
-	   if (n.getLeft().isInnerNode())
-		   return n.getLeft().getMax(); //if n has left child, we go left to the end
-	   WAVLNode cur = n.getParent();
-	   while (cur != null && cur.isInnerNode() && n.equals(cur.getLeft())) { // if not, go up to the successor
+	   WAVLNode next = step(n, false);
+	   return (next == null) ? EXTERNAL : next;
+   }
+
+   /**
+    * private static WAVLNode step(WAVLNode n, boolean ascending)
+    *
+    * returns the successor (or the predecessor if ascending is false) of the inner node n,
+    * or null if there is none. walking the whole tree this way costs O(1) amortized per step
+    */
+	private static WAVLNode step(WAVLNode n, boolean ascending) {
+	   WAVLNode child = ascending ? n.right : n.left;
+	   if (child.isInnerNode()) // go down once and then to the end of the other side
+		   return ascending ? child.getMin() : child.getMax();
+	   WAVLNode cur = n.parent;
+	   while (cur != null && (ascending ? cur.right : cur.left) == n) { // if not, go up to the first turn
 		   n = cur;
-		   cur = n.getParent();
+		   cur = n.parent;
 	   }
 	   return cur;
    }
+
+	/**
+	* public static class Cursor
+	*
+	* an in-order cursor over the keys of a tree, that allocates nothing while it moves.
+	* value() returns the info of the last key returned by nextInt().
+	* the tree must not be modified while the cursor is in use
+	*/
+	public static class Cursor implements PrimitiveIterator.OfInt {
+		  private WAVLNode next; // the node nextInt() returns, null at the end
+		  private WAVLNode current; // the node last returned by nextInt()
+		  private final boolean ascending;
+
+		  private Cursor(WAVLNode first, boolean ascending) {
+			  this.next = first;
+			  this.ascending = ascending;
+		  }
+
+		  /**
+		   * public boolean hasNext()
+		   *
+		   * returns true if there are more keys
+		   */
+		  public boolean hasNext() {
+			  return next != null;
+		  }
+
+		  /**
+		   * public int nextInt()
+		   *
+		   * moves to the next node and returns its key
+		   */
+		  public int nextInt() {
+			  if (next == null)
+				  throw new NoSuchElementException();
+			  current = next;
+			  next = step(current, ascending);
+			  return current.key;
+		  }
+
+		  /**
+		   * public String value()
+		   *
+		   * returns the info of the key last returned by nextInt()
+		   */
+		  public String value() {
+			  if (current == null)
+				  throw new IllegalStateException("nextInt() was not called");
+			  return current.value;
+		  }
+	}
+
+	/**
+	* public interface IntObjConsumer<T>
+	*
+	* an action on an int key and an object, without boxing the key
+	*/
+	@FunctionalInterface
+	public interface IntObjConsumer<T> {
+		  void accept(int key, T value);
+	}
+
+	/**
+	* public interface IntObjPredicate<T>
+	*
+	* a condition on an int key and an object, without boxing the key
+	*/
+	@FunctionalInterface
+	public interface IntObjPredicate<T> {
+		  boolean test(int key, T value);
+	}
+
+	/**
+	* private static class NodeSpliterator
+	*
+	* a spliterator over the nodes with in-order indices [from, to) of the tree of root.
+	* the first node is found by index in O(log n) only when traversal starts, and every
+	* later node is reached by an O(1) amortized step
+	*/
+	private static class NodeSpliterator implements Spliterator<WAVLNode> {
+		  private final WAVLNode root;
+		  private WAVLNode next; // the node of index from, null until it is looked up
+		  private int from;
+		  private final int to;
+
+		  NodeSpliterator(WAVLNode root, WAVLNode next, int from, int to) {
+			  this.root = root;
+			  this.next = next;
+			  this.from = from;
+			  this.to = to;
+		  }
+
+		  public boolean tryAdvance(Consumer<? super WAVLNode> action) {
+			  if (from >= to)
+				  return false;
+			  if (next == null)
+				  next = nodeAt(root, from);
+			  WAVLNode cur = next;
+			  from++;
+			  next = (from < to) ? step(cur, true) : null;
+			  action.accept(cur);
+			  return true;
+		  }
+
+		  public Spliterator<WAVLNode> trySplit() {
+			  int mid = (from + to) >>> 1;
+			  if (mid == from) // a single node is left
+				  return null;
+			  Spliterator<WAVLNode> prefix = new NodeSpliterator(root, next, from, mid);
+			  from = mid;
+			  next = null;
+			  return prefix;
+		  }
+
+		  public long estimateSize() {
+			  return to - from;
+		  }
+
+		  public int characteristics() {
+			  return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+		  }
+
+		  /**
+		   * static WAVLNode nodeAt(WAVLNode root, int index)
+		   *
+		   * returns the node with the given in-order index (from 0) in the tree of root, without recursion
+		   */
+		  static WAVLNode nodeAt(WAVLNode root, int index) {
+			  WAVLNode cur = root;
+			  while (true) {
+				  int leftSize = cur.left.getSubtreeSize();
+				  if (index == leftSize)
+					  return cur;
+				  if (index < leftSize)
+					  cur = cur.left;
+				  else {
+					  index -= leftSize + 1;
+					  cur = cur.right;
+				  }
+			  }
+		  }
+	}
    
 	/**
-	* public class WAVLNode
+	* public static class WAVLNode
+	*
+	* a static nested class, so a node holds no hidden reference to the tree it belongs to
   	*/
-	public class WAVLNode{
+	public static class WAVLNode{
+		  private static final int LEFT_TWO = 1 << 30; // set if the left child is a 2-child, clear if it is a 1-child
+		  private static final int RIGHT_TWO = 1 << 31; // set if the right child is a 2-child, clear if it is a 1-child
+		  private static final int SIZE_MASK = LEFT_TWO - 1; // the sub-tree size takes the low 30 bits
 	  
-		  private int rank;
 		  private int key;
 		  private String value;
 		  private WAVLNode parent;
 		  private WAVLNode left;
 		  private WAVLNode right;
-		  private int sub_tree_size;
+		  private int meta; // the rank differences to both children packed with the sub-tree size, instead of a rank field
+		  private int epoch; // the frozenBelow of the tree that created the node, it fits in the padding of the object
 		  
 	  /**
 		   * public WAVLNode(int key, String value)
 		   * 
 		   * a constructor of a new WAVLNode with key k and info value
 		   * the node has no children (his children are external nodes) and it has null parent 
-		   * the rank is initialized to 0 and the size to 1
+		   * the rank is initialized to 0 (both children are 1-children) and the size to 1
 		   */
 		  public WAVLNode(int key, String value) {
-			  this.rank = 0;
 			  this.key = key;
 			  this.value = value;
 			  this.parent = null;
-			  this.left = new WAVLNode();
-			  left.setParent(this);
-			  this.right = new WAVLNode();
-			  right.setParent(this);
-			  sub_tree_size = 1;
+			  this.left = EXTERNAL;
+			  this.right = EXTERNAL;
+			  this.meta = 1;
 		  }
 		  
 		  /**
@@ -647,8 +2345,7 @@ public class WAVLTree {
 			  this.parent = null;
 			  this.left = null;
 			  this.right = null;
-			  this.rank = -1;
-			  this.sub_tree_size = 0;
+			  this.meta = 0;
 		  }
 	
 		  /**
@@ -680,9 +2377,13 @@ public class WAVLTree {
 		  /**
 		   * public int getRank() 
 		   * 
-		   * returns the rank of the node
+		   * returns the rank of the node, summing the rank differences down to the external node
+		   * in O(log n) since ranks are not stored
 		   */
 		  public int getRank(){
+			  int rank = -1;
+			  for (WAVLNode n = this; n.isInnerNode(); n = n.left)
+				  rank += n.diff(true);
 	           return rank; 
 		  }
 		  
@@ -710,7 +2411,7 @@ public class WAVLTree {
 		   * return true if the node is inner node and false if external
 		   */
 		  public boolean isInnerNode() {
-            return rank != -1; 
+            return left != null; 
 	  }
 
 	  /**
@@ -719,7 +2420,7 @@ public class WAVLTree {
 	   * returns true if the node is a leaf or false otherwise 
 	   */
 		  public boolean isLeaf(){
-	  		return (left.rank == -1 && right.rank == -1);
+	  		return (!left.isInnerNode() && !right.isInnerNode());
 	  	}
 
 	  	/**
@@ -729,45 +2430,63 @@ public class WAVLTree {
 	  	 * 
 	  	 */
 		  public int getSubtreeSize(){
-            return sub_tree_size; 
+            return meta & SIZE_MASK; 
 	  	}
    
 	  	/**
 	  	 	* public void setSubtreeSize(int newSize)
 	  	 * 
-	  	 * sets a new subTree size to the node
+	  	 * sets a new subTree size to the node.
+	  	 * throws UnsupportedOperationException on the shared external node
 	  	 */
 		  public void setSubtreeSize(int newSize) {
-	  		this.sub_tree_size = newSize;
+	  		checkWritable();
+	  		this.meta = (meta & ~SIZE_MASK) | newSize;
 	  	}
     
 	  	/**
 	  	 	* public void setLeft(WAVLNode n)
 	  	 * 
-	  	 * set new left child for the node
+	  	 * set new left child for the node.
+	  	 * throws UnsupportedOperationException on the shared external node
 	  	 */
 		  public void setLeft(WAVLNode n){
+	  		checkWritable();
 	  		this.left = n;
 	  	}
     
 	  	/**
 	  	 	* public void setRight(WAVLNode n)
 	  	 * 
-	  	 * set new right child for the node
+	  	 * set new right child for the node.
+	  	 * throws UnsupportedOperationException on the shared external node
 	  	 */
 		  public void setRight(WAVLNode n) {
+	  		checkWritable();
 	  		this.right = n;
 	  	}
     
 	  	/**
 	  	 	* public void setParent(WAVLNode n)
 	  	 * 
-	  	 * set new parent for the node
+	  	 * set new parent for the node.
+	  	 * throws UnsupportedOperationException on the shared external node
 	  	 */
 		  public void setParent(WAVLNode n) {
+	  		checkWritable();
 	  		this.parent = n;
 	  	}
     
+	  	/**
+	  	 * private void checkWritable()
+	  	 *
+	  	 * refuses writes to the external node, which is shared by all the trees
+	  	 */
+		  private void checkWritable(){
+	  		if (this == EXTERNAL)
+	  			throw new UnsupportedOperationException("the external node is shared and cannot be modified");
+	  	}
+    
 	  	/**
 	  	 * private WAVLNode getMin()
 	  	 * 
@@ -793,29 +2512,41 @@ public class WAVLTree {
 		  }
     
 		  /**
-		   * private WAVLNode getBrother()
-		   * 
-		   * returns the other child of this.parent 
+		   * private WAVLNode child(boolean leftSide)
+		   *
+		   * returns the left child if leftSide is true and the right child otherwise
 		   */
-		  private WAVLNode getBrother(){
-			  if (parent == null)	
-				  return null;
-			  if (this.equals(parent.left))
-				  return parent.getRight();
-			  else
-				  return parent.getLeft();
+		  private WAVLNode child(boolean leftSide){
+			  return leftSide ? left : right;
 		  }
 
 		  /**
-		   * private void updateRank()
-		   * 
-		   * updates the rank of the current node based on the rank of it's children
+		   * private int diff(boolean leftSide)
+		   *
+		   * returns the rank difference (1 or 2) between the node and its child on the given side
 		   */
-		  private void updateRank(){
-			  if (this.rank - left.rank == 3 && this.rank - right.rank == 3)
-				  this.rank = this.rank - 1;
-			  else
-				  this.rank = Math.max(left.rank, right.rank) + 1;
+		  private int diff(boolean leftSide){
+			  return (meta & (leftSide ? LEFT_TWO : RIGHT_TWO)) != 0 ? 2 : 1;
+		  }
+
+		  /**
+		   * private void setDiff(boolean leftSide, int diff)
+		   *
+		   * sets the rank difference (1 or 2) between the node and its child on the given side
+		   */
+		  private void setDiff(boolean leftSide, int diff){
+			  int bit = leftSide ? LEFT_TWO : RIGHT_TWO;
+			  meta = (diff == 2) ? (meta | bit) : (meta & ~bit);
+		  }
+
+		  /**
+		   * private void setDiffs(int leftDiff, int rightDiff)
+		   *
+		   * sets the rank differences to both children
+		   */
+		  private void setDiffs(int leftDiff, int rightDiff){
+			  setDiff(true, leftDiff);
+			  setDiff(false, rightDiff);
 		  }
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file